@@ -0,0 +1,637 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import static com.qualitype.nexus.plugins.tycho.internal.ReplayComponents.inject;
+import static org.sonatype.nexus.plugins.p2.repository.P2Constants.P2_REPOSITORY_ROOT_PATH;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.nexus.proxy.ResourceStoreRequest;
+import org.sonatype.nexus.proxy.item.StorageItem;
+import org.sonatype.nexus.proxy.repository.Repository;
+import org.sonatype.scheduling.ProgressListener;
+
+import com.qualitype.nexus.plugins.tycho.P2TychoRepositoryAggregator;
+import com.qualitype.nexus.plugins.tycho.P2TychoRepositoryAggregatorConfiguration;
+
+/**
+ * Replays a sequence of deploys (synthetic Tycho reactors or a recorded sequence) through the aggregator as wired in
+ * Nexus: a {@link ReplayRepository} dispatches the events to the real event inspector and aggregation queue, which
+ * hand them to {@link DefaultP2TychoRepositoryAggregator}. Reports the latency of each fragment event (deployed until
+ * aggregated) and the total time, then checks the published content.xml / artifacts.xml against the fragments left in
+ * the repository and, optionally, against reference files. Unless an engine is given, the deploys are replayed with
+ * both merge engines and the p2 repositories they published are compared as well, canonically: entry by entry (see
+ * {@link P2EntryDigest}) and header by header, with the timestamp and generation masked.
+ * <p>
+ * Usage: {@code P2DeployReplay [--reactors 10] [--modules 10] [--units 20] [--redeploys 20] [--deletes 5]
+ * [--interval 0] [--window 0] [--mode monolithic|composite|sharded] [--engine index|streaming] [--seed 1]
+ * [--recorded file] [--reference dir] [--rebuild] [--dir dir]}
+ * <p>
+ * A recorded sequence has one deploy per line, {@code store <repository path> <file>} or
+ * {@code delete <repository path>}; blank lines and lines starting with # are ignored.
+ */
+public class P2DeployReplay {
+
+    private static final String REPOSITORY_ID = "replay";
+
+    private final Map<String, String> options;
+
+    private ReplayRepository replay;
+
+    private RecordingAggregator aggregator;
+
+    public P2DeployReplay(final Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            final String name = args[i].substring(2);
+            options.put(name, i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : "true");
+        }
+        System.exit(new P2DeployReplay(options).run() ? 0 : 1);
+    }
+
+    /**
+     * @return true if the aggregated p2 repository matches the expectations and, unless an engine was given, if both
+     *         merge engines published the same p2 repositories
+     */
+    boolean run() throws Exception {
+        final File workDir = options.containsKey("dir") ? new File(options.get("dir")) : createTempDir();
+        try {
+            if (options.containsKey("engine")) {
+                return replay(options.get("engine"), workDir, new LinkedHashMap<String, Map<String, String>>());
+            }
+            final Map<String, Map<String, String>> indexed = new LinkedHashMap<String, Map<String, String>>();
+            final Map<String, Map<String, String>> streamed = new LinkedHashMap<String, Map<String, String>>();
+            boolean matches = replay(P2TychoRepositoryAggregatorConfiguration.INDEX, new File(workDir,
+                    P2TychoRepositoryAggregatorConfiguration.INDEX), indexed);
+            matches &= replay(P2TychoRepositoryAggregatorConfiguration.STREAMING, new File(workDir,
+                    P2TychoRepositoryAggregatorConfiguration.STREAMING), streamed);
+            for (final String what : indexed.keySet()) {
+                matches &= compareEngines(what, indexed.get(what), streamed.get(what));
+            }
+            return matches;
+        } finally {
+            if (!options.containsKey("dir")) {
+                FileUtils.deleteDirectory(workDir);
+            }
+        }
+    }
+
+    /**
+     * Replays the deploys with given merge engine.
+     * @param published receives the canonical form of the published p2 repositories (see {@link #canonical()}) by
+     *            the state verified
+     * @return true if the aggregated p2 repository matches the expectations
+     */
+    private boolean replay(final String engine, final File workDir, final Map<String, Map<String, String>> published)
+            throws Exception {
+        setUp(new File(workDir, "storage"), engine);
+        final List<Deploy> deploys = options.containsKey("recorded") ? recorded(new File(options.get("recorded")))
+                : synthetic();
+
+        System.out.println(String.format("Replaying with the %s merge engine", engine));
+        final long start = System.nanoTime();
+        final long interval = longOption("interval", 0);
+        for (final Deploy deploy : deploys) {
+            deploy.apply();
+            if (interval > 0) {
+                Thread.sleep(interval);
+            }
+        }
+        if (!aggregator.await(TimeUnit.MINUTES.toMillis(longOption("timeout", 10)))) {
+            System.out.println("Timed out waiting for the aggregation to finish");
+            return false;
+        }
+        final long total = System.nanoTime() - start;
+
+        System.out.println(String.format("Replayed %d deploys, %d fragment events in %d batches, %d ms total",
+                deploys.size(), aggregator.latencies.size(), aggregator.batches.size(),
+                TimeUnit.NANOSECONDS.toMillis(total)));
+        report("event latency", aggregator.latencies);
+        report("batch time", aggregator.batches);
+
+        boolean matches = verify("aggregated");
+        published.put("aggregated", canonical());
+        if (options.containsKey("rebuild")) {
+            final long rebuildStart = System.nanoTime();
+            aggregator.scanAndRebuild(REPOSITORY_ID, true);
+            System.out.println(String.format("Full rebuild: %d ms",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - rebuildStart)));
+            matches &= verify("rebuilt");
+            published.put("rebuilt", canonical());
+        }
+        return matches;
+    }
+
+    private void setUp(final File baseDir, final String engine) throws Exception {
+        replay = new ReplayRepository(REPOSITORY_ID, baseDir, ReplayComponents.mimeSupport());
+
+        final P2RepositoryLocks locks = inject(new P2RepositoryLocks());
+        final P2AggregationMetrics metrics = inject(new P2AggregationMetrics(locks));
+        final P2TychoRoutingTable routingTable = new P2TychoRoutingTable();
+        aggregator = new RecordingAggregator(ReplayComponents.aggregator(replay, locks, routingTable, metrics));
+        final P2TychoAggregationQueue queue = inject(new P2TychoAggregationQueue(aggregator, metrics));
+        replay.addInspector(new P2TychoEventsInspector(routingTable, queue));
+
+        final Map<String, String> properties = new HashMap<String, String>();
+        properties.put(P2TychoRepositoryAggregatorConfiguration.REPOSITORY, REPOSITORY_ID);
+        properties.put(P2TychoRepositoryAggregatorConfiguration.COALESCING_WINDOW, String.valueOf(longOption(
+                "window", 0)));
+        if (options.containsKey("mode")) {
+            properties.put(P2TychoRepositoryAggregatorConfiguration.AGGREGATION_MODE, options.get("mode"));
+        }
+        properties.put(P2TychoRepositoryAggregatorConfiguration.MERGE_ENGINE, engine);
+        final P2TychoRepositoryAggregatorConfiguration configuration = new P2TychoRepositoryAggregatorConfiguration(
+                properties);
+        aggregator.addConfiguration(configuration);
+        aggregator.enableAggregationFor(configuration);
+    }
+
+    /**
+     * N reactors of M modules each deploy once, then random modules are redeployed (with one more unit) or deleted.
+     */
+    private List<Deploy> synthetic() {
+        final int reactors = (int) longOption("reactors", 10);
+        final int modules = (int) longOption("modules", 10);
+        final int units = (int) longOption("units", 20);
+        final Random random = new Random(longOption("seed", 1));
+
+        final List<Deploy> deploys = new ArrayList<Deploy>();
+        for (int reactor = 0; reactor < reactors; reactor++) {
+            for (int module = 0; module < modules; module++) {
+                deploys.addAll(module(reactor, module, reactor * modules + module, units));
+            }
+        }
+        for (int i = 0; i < longOption("redeploys", 20); i++) {
+            final int build = random.nextInt(reactors * modules);
+            deploys.addAll(module(build / modules, build % modules, build, units + 1));
+        }
+        final Set<Integer> deleted = new TreeSet<Integer>();
+        while (deleted.size() < Math.min(longOption("deletes", 5), reactors * modules)) {
+            final int build = random.nextInt(reactors * modules);
+            if (!deleted.add(build)) {
+                continue;
+            }
+            final String prefix = modulePath(build / modules, build % modules);
+            for (final String suffix : new String[] { ".jar", "-p2metadata.xml", "-p2artifacts.xml" }) {
+                deploys.add(new Deploy(prefix + suffix, null));
+            }
+        }
+        return deploys;
+    }
+
+    private List<Deploy> module(final int reactor, final int module, final int build, final int units) {
+        final String prefix = modulePath(reactor, module);
+        final List<Deploy> deploys = new ArrayList<Deploy>();
+        deploys.add(new Deploy(prefix + ".jar", new byte[0]));
+        deploys.add(new Deploy(prefix + "-p2metadata.xml", bytes(TychoFragmentGenerator.metadataFragment(build,
+                units))));
+        deploys.add(new Deploy(prefix + "-p2artifacts.xml", bytes(TychoFragmentGenerator.artifactsFragment(build,
+                units))));
+        return deploys;
+    }
+
+    private static String modulePath(final int reactor, final int module) {
+        return "/com/example/reactor" + reactor + "/module" + module + "/1.0.0/module" + module + "-1.0.0";
+    }
+
+    private List<Deploy> recorded(final File sequence) throws IOException {
+        final List<Deploy> deploys = new ArrayList<Deploy>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(sequence),
+                P2RepositoryIndex.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] parts = line.split("\\s+");
+                if ("store".equals(parts[0]) && parts.length == 3) {
+                    final File file = new File(sequence.getParentFile(), parts[2]);
+                    final FileInputStream in = new FileInputStream(file.isAbsolute() ? new File(parts[2]) : file);
+                    try {
+                        deploys.add(new Deploy(parts[1], IOUtil.toByteArray(in)));
+                    } finally {
+                        IOUtil.close(in);
+                    }
+                } else if ("delete".equals(parts[0]) && parts.length == 2) {
+                    deploys.add(new Deploy(parts[1], null));
+                } else {
+                    throw new IOException("Unexpected line in " + sequence + ": " + line);
+                }
+            }
+        } finally {
+            IOUtil.close(reader);
+        }
+        return deploys;
+    }
+
+    /**
+     * Compares the units and artifacts of the aggregated p2 repository with the fragments found in the repository and
+     * with the reference content.xml / artifacts.xml, if given.
+     */
+    private boolean verify(final String what) throws Exception {
+        final InstallableUnitIndex expectedContent = new InstallableUnitIndex();
+        final ArtifactDescriptorIndex expectedArtifacts = new ArtifactDescriptorIndex();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (final File fragment : new P2FragmentScanner(executor).scan(replay.baseDir()).values()) {
+                if (P2TychoRoutingTable.isP2ArtifactsXML(fragment.getPath())) {
+                    final ArtifactDescriptorIndex index = new ArtifactDescriptorIndex();
+                    index.loadFragment(fragment);
+                    expectedArtifacts.putAll(index);
+                } else {
+                    final InstallableUnitIndex index = new InstallableUnitIndex();
+                    index.loadFragment(fragment);
+                    expectedContent.putAll(index);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final Set<String> content = published("content.xml", new InstallableUnitIndex());
+        final Set<String> artifacts = published("artifacts.xml", new ArtifactDescriptorIndex());
+        boolean matches = compare(what + " units", new TreeSet<String>(expectedContent.keys()), content);
+        matches &= compare(what + " artifacts", new TreeSet<String>(expectedArtifacts.keys()), artifacts);
+        if (options.containsKey("reference")) {
+            final File reference = new File(options.get("reference"));
+            matches &= compare(what + " units (reference)", keys(new File(reference, "content.xml"),
+                    new InstallableUnitIndex()), content);
+            matches &= compare(what + " artifacts (reference)", keys(new File(reference, "artifacts.xml"),
+                    new ArtifactDescriptorIndex()), artifacts);
+        }
+        return matches;
+    }
+
+    /**
+     * @return keys of all p2 repositories published at /.meta/p2 (the children of a composite repository)
+     */
+    private Set<String> published(final String name, final P2RepositoryIndex template) throws IOException {
+        final File root = replay.fileOf(P2_REPOSITORY_ROOT_PATH);
+        final File composite = new File(root, P2CompositeIndex.COMPOSITE_CONTENT_XML);
+        if (!composite.isFile()) {
+            return keys(new File(root, name), template);
+        }
+        final P2CompositeIndex children = new P2CompositeIndex();
+        children.load(composite);
+        final Set<String> keys = new TreeSet<String>();
+        for (final String location : children.children()) {
+            final P2RepositoryIndex index = template instanceof ArtifactDescriptorIndex ? new ArtifactDescriptorIndex()
+                    : new InstallableUnitIndex();
+            keys.addAll(keys(replay.fileOf(P2RepositoryLayout.childRoot(location) + "/" + name), index));
+        }
+        return keys;
+    }
+
+    /**
+     * @return the canonical form of the p2 repositories published at /.meta/p2, by document: the canonical hash of
+     *         every entry and the header, with the properties that change with every publication masked
+     */
+    private Map<String, String> canonical() throws IOException {
+        final Map<String, String> canonical = new TreeMap<String, String>();
+        final Set<String> roots = new TreeSet<String>();
+        final File composite = new File(replay.fileOf(P2_REPOSITORY_ROOT_PATH), P2CompositeIndex.COMPOSITE_CONTENT_XML);
+        if (composite.isFile()) {
+            final P2CompositeIndex children = new P2CompositeIndex();
+            children.load(composite);
+            for (final String location : children.children()) {
+                roots.add(P2RepositoryLayout.childRoot(location));
+            }
+            canonical.put(P2_REPOSITORY_ROOT_PATH + " children", roots.toString());
+        } else {
+            roots.add(P2_REPOSITORY_ROOT_PATH);
+        }
+        for (final String root : roots) {
+            canonical(root + "/content.xml", new InstallableUnitIndex(), canonical);
+            canonical(root + "/artifacts.xml", new ArtifactDescriptorIndex(), canonical);
+        }
+        return canonical;
+    }
+
+    private void canonical(final String path, final P2RepositoryIndex index, final Map<String, String> canonical)
+            throws IOException {
+        index.load(replay.fileOf(path));
+        for (final String key : index.keys()) {
+            canonical.put(path + " " + key, new BigInteger(1, index.hashOf(key)).toString(16));
+        }
+        index.removeKeys(new ArrayList<String>(index.keys()));
+        for (final String property : new String[] { P2RepositoryIndex.P2_TIMESTAMP, P2PublishStage.P2_GENERATION }) {
+            if (index.getProperty(property) != null) {
+                index.setProperty(property, "*");
+            }
+        }
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        index.write(header);
+        canonical.put(path + " header", header.toString(P2RepositoryIndex.UTF_8));
+    }
+
+    /**
+     * Compares the canonical forms of the p2 repositories published by the index and the streaming merge engine.
+     */
+    private static boolean compareEngines(final String what, final Map<String, String> indexed,
+            final Map<String, String> streamed) {
+        final Set<String> differing = new TreeSet<String>(indexed.keySet());
+        differing.addAll(streamed.keySet());
+        for (final Iterator<String> it = differing.iterator(); it.hasNext();) {
+            final String key = it.next();
+            if (indexed.containsKey(key) && indexed.get(key).equals(streamed.get(key))) {
+                it.remove();
+            }
+        }
+        if (differing.isEmpty()) {
+            System.out.println(String.format("%s by both engines: %d entries and headers alike", what,
+                    indexed.size()));
+            return true;
+        }
+        System.out.println(String.format("%s by both engines: %d differ %s", what, differing.size(),
+                first(differing)));
+        return false;
+    }
+
+    private static Set<String> keys(final File file, final P2RepositoryIndex index) throws IOException {
+        index.load(file);
+        return new TreeSet<String>(index.keys());
+    }
+
+    private static boolean compare(final String what, final Set<String> expected, final Set<String> actual) {
+        final Set<String> missing = new TreeSet<String>(expected);
+        missing.removeAll(actual);
+        final Set<String> unexpected = new TreeSet<String>(actual);
+        unexpected.removeAll(expected);
+        if (missing.isEmpty() && unexpected.isEmpty()) {
+            System.out.println(String.format("%s: %d as expected", what, actual.size()));
+            return true;
+        }
+        System.out.println(String.format("%s: %d missing %s, %d unexpected %s", what, missing.size(), first(missing),
+                unexpected.size(), first(unexpected)));
+        return false;
+    }
+
+    private static String first(final Set<String> keys) {
+        final List<String> first = new ArrayList<String>();
+        for (final Iterator<String> it = keys.iterator(); it.hasNext() && first.size() < 5;) {
+            first.add(it.next());
+        }
+        return first.toString();
+    }
+
+    private static void report(final String what, final List<Long> nanos) {
+        if (nanos.isEmpty()) {
+            return;
+        }
+        final List<Long> sorted = new ArrayList<Long>(nanos);
+        Collections.sort(sorted);
+        System.out.println(String.format("%s (ms): p50=%.1f p90=%.1f p99=%.1f max=%.1f", what, percentile(sorted, 50),
+                percentile(sorted, 90), percentile(sorted, 99), sorted.get(sorted.size() - 1) / 1e6));
+    }
+
+    private static double percentile(final List<Long> sorted, final int percentile) {
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+
+    private long longOption(final String name, final long defaultValue) {
+        return options.containsKey(name) ? Long.parseLong(options.get(name)) : defaultValue;
+    }
+
+    private static byte[] bytes(final String content) {
+        try {
+            return content.getBytes(P2RepositoryIndex.UTF_8);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static File createTempDir() throws IOException {
+        final File dir = File.createTempFile("p2-deploy-replay", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private class Deploy {
+
+        private final String path;
+
+        // null for a delete
+        private final byte[] content;
+
+        Deploy(final String path, final byte[] content) {
+            this.path = path;
+            this.content = content;
+        }
+
+        void apply() throws Exception {
+            final Repository repository = replay.repository();
+            if (P2TychoRoutingTable.fragmentOf(path) != null) {
+                aggregator.issued(path);
+            }
+            if (content == null) {
+                repository.deleteItem(new ResourceStoreRequest(path));
+            } else {
+                NexusUtils.storeItem(repository, new ResourceStoreRequest(path), new ByteArrayInputStream(content),
+                        null, null);
+            }
+        }
+
+    }
+
+    /**
+     * Passes everything on to the aggregator, recording when the fragment events issued for a path got aggregated.
+     */
+    private static class RecordingAggregator implements P2TychoRepositoryAggregator {
+
+        private final P2TychoRepositoryAggregator delegate;
+
+        // issue times (nanos) of fragment events not aggregated yet, by path
+        private final Map<String, List<Long>> pending = new LinkedHashMap<String, List<Long>>();
+
+        private final List<Long> latencies = new ArrayList<Long>();
+
+        private final List<Long> batches = new ArrayList<Long>();
+
+        RecordingAggregator(final P2TychoRepositoryAggregator delegate) {
+            this.delegate = delegate;
+        }
+
+        synchronized void issued(final String path) {
+            List<Long> issued = pending.get(path);
+            if (issued == null) {
+                issued = new ArrayList<Long>();
+                pending.put(path, issued);
+            }
+            issued.add(System.nanoTime());
+        }
+
+        synchronized boolean await(final long timeoutMillis) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (!pending.isEmpty()) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+
+        @Override
+        public void updateP2Repository(final String repositoryId, final Collection<StorageItem> stored,
+                final Collection<StorageItem> deleted) {
+            final long start = System.nanoTime();
+            try {
+                delegate.updateP2Repository(repositoryId, stored, deleted);
+            } finally {
+                final long end = System.nanoTime();
+                synchronized (this) {
+                    batches.add(end - start);
+                    completed(stored, start, end);
+                    completed(deleted, start, end);
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Events issued after the batch started are left for the next batch.
+         */
+        private void completed(final Collection<StorageItem> items, final long start, final long end) {
+            for (final StorageItem item : items) {
+                final List<Long> issued = pending.get(item.getPath());
+                if (issued == null) {
+                    continue;
+                }
+                for (final Iterator<Long> it = issued.iterator(); it.hasNext();) {
+                    final long time = it.next();
+                    if (time <= start) {
+                        latencies.add(end - time);
+                        it.remove();
+                    }
+                }
+                if (issued.isEmpty()) {
+                    pending.remove(item.getPath());
+                }
+            }
+        }
+
+        @Override
+        public void addConfiguration(final P2TychoRepositoryAggregatorConfiguration configuration) {
+            delegate.addConfiguration(configuration);
+        }
+
+        @Override
+        public void removeConfiguration(final P2TychoRepositoryAggregatorConfiguration configuration) {
+            delegate.removeConfiguration(configuration);
+        }
+
+        @Override
+        public P2TychoRepositoryAggregatorConfiguration getConfiguration(final String repositoryId) {
+            return delegate.getConfiguration(repositoryId);
+        }
+
+        @Override
+        public void enableAggregationFor(final P2TychoRepositoryAggregatorConfiguration configuration) {
+            delegate.enableAggregationFor(configuration);
+        }
+
+        @Override
+        public void disableAggregationFor(final P2TychoRepositoryAggregatorConfiguration configuration) {
+            delegate.disableAggregationFor(configuration);
+        }
+
+        @Override
+        public void updateP2Artifacts(final StorageItem item) {
+            delegate.updateP2Artifacts(item);
+        }
+
+        @Override
+        public void removeP2Artifacts(final StorageItem item) {
+            delegate.removeP2Artifacts(item);
+        }
+
+        @Override
+        public void updateP2Metadata(final StorageItem item) {
+            delegate.updateP2Metadata(item);
+        }
+
+        @Override
+        public void removeP2Metadata(final StorageItem item) {
+            delegate.removeP2Metadata(item);
+        }
+
+        @Override
+        public void scanAndRebuild(final String repositoryId) {
+            delegate.scanAndRebuild(repositoryId);
+        }
+
+        @Override
+        public void scanAndRebuild(final String repositoryId, final boolean forceFull) {
+            delegate.scanAndRebuild(repositoryId, forceFull);
+        }
+
+        @Override
+        public void scanAndRebuild(final String repositoryId, final String resourceStorePath,
+                final boolean forceFull, final ProgressListener progress) {
+            delegate.scanAndRebuild(repositoryId, resourceStorePath, forceFull, progress);
+        }
+
+        @Override
+        public void scanAndRebuild() {
+            delegate.scanAndRebuild();
+        }
+
+        @Override
+        public void scanAndRebuild(final boolean forceFull) {
+            delegate.scanAndRebuild(forceFull);
+        }
+
+        @Override
+        public void scanAndRebuild(final boolean forceFull, final ProgressListener progress) {
+            delegate.scanAndRebuild(forceFull, progress);
+        }
+
+    }
+
+}
@@ -0,0 +1,82 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a single Tycho fragment: injecting the missing repository header while streaming and parsing the fragment
+ * into an index, as done for every deployed fragment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class P2FragmentBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int units;
+
+    private byte[] metadata;
+
+    private byte[] artifacts;
+
+    @Setup
+    public void setUp() throws IOException {
+        metadata = TychoFragmentGenerator.metadataFragment(0, units).getBytes(P2RepositoryIndex.UTF_8);
+        artifacts = TychoFragmentGenerator.artifactsFragment(0, units).getBytes(P2RepositoryIndex.UTF_8);
+    }
+
+    @Benchmark
+    public int wrapMetadataFragment() throws IOException {
+        final InputStream in = P2FragmentStreams.wrap(new ByteArrayInputStream(metadata),
+                P2FragmentStreams.METADATA_HEADER);
+        try {
+            return IOUtil.toByteArray(in).length;
+        } finally {
+            IOUtil.close(in);
+        }
+    }
+
+    @Benchmark
+    public InstallableUnitIndex loadMetadataFragment() throws IOException {
+        final InstallableUnitIndex index = new InstallableUnitIndex();
+        index.load(P2FragmentStreams.wrap(new ByteArrayInputStream(metadata), P2FragmentStreams.METADATA_HEADER));
+        return index;
+    }
+
+    @Benchmark
+    public ArtifactDescriptorIndex loadArtifactsFragment() throws IOException {
+        final ArtifactDescriptorIndex index = new ArtifactDescriptorIndex();
+        index.load(P2FragmentStreams.wrap(new ByteArrayInputStream(artifacts), P2FragmentStreams.ARTIFACTS_HEADER));
+        return index;
+    }
+
+}
@@ -0,0 +1,147 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Applying one deployed fragment to an aggregated p2 repository of growing size, and publishing the result. The
+ * in-memory index applies the fragment as a delta; "rewrite" stands in for the p2 bridge, which loads the whole
+ * aggregated repository, merges and writes it back for every fragment. The per-fragment cost of the index should not
+ * grow with the size of the aggregated repository. "streaming" applies and publishes the fragment with only the keys of
+ * the aggregated repository in memory, streaming the rest from the previously published content.xml.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class P2MergeBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int aggregatedBuilds;
+
+    @Param({ "10", "100" })
+    public int unitsPerBuild;
+
+    private InstallableUnitIndex aggregate;
+
+    private byte[] aggregateXml;
+
+    private InstallableUnitIndex fragment;
+
+    private File tempDir;
+
+    private File published;
+
+    private InstallableUnitIndex streaming;
+
+    @Setup
+    public void setUp() throws IOException {
+        aggregate = new InstallableUnitIndex();
+        aggregate.initialize("benchmark");
+        for (int build = 0; build < aggregatedBuilds; build++) {
+            aggregate.putAll(load(TychoFragmentGenerator.metadataFragment(build, unitsPerBuild)));
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        aggregate.write(out);
+        aggregateXml = out.toByteArray();
+        fragment = load(TychoFragmentGenerator.metadataFragment(aggregatedBuilds, unitsPerBuild));
+
+        tempDir = File.createTempFile("p2-merge-benchmark", "");
+        tempDir.delete();
+        tempDir.mkdirs();
+        published = new File(tempDir, "published-content.xml");
+        aggregate.write(published);
+        streaming = new InstallableUnitIndex();
+        streaming.loadKeys(published);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Benchmark
+    public int indexMerge() {
+        // redeploying the same fragment, so the aggregate keeps its size across invocations
+        aggregate.putAll(fragment);
+        return aggregate.size();
+    }
+
+    @Benchmark
+    public int rewriteMerge() throws IOException {
+        final InstallableUnitIndex loaded = new InstallableUnitIndex();
+        loaded.load(new ByteArrayInputStream(aggregateXml));
+        loaded.putAll(fragment);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(aggregateXml.length);
+        loaded.write(out);
+        return out.size();
+    }
+
+    @Benchmark
+    public long streamingMerge() throws IOException {
+        streaming.putAll(fragment);
+        final File staged = new File(tempDir, "staged-content.xml");
+        streaming.write(staged);
+        if (!staged.renameTo(published)) {
+            throw new IOException("Could not publish " + staged);
+        }
+        streaming.evict(published);
+        return published.length();
+    }
+
+    @Benchmark
+    public int publishXml() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(aggregateXml.length);
+        aggregate.write(out);
+        return out.size();
+    }
+
+    @Benchmark
+    public long publishWithCompressedForms() throws IOException {
+        final File xml = new File(tempDir, "content.xml");
+        aggregate.write(xml);
+        final File jar = new File(tempDir, P2RepositoryFormats.jarName(xml.getName()));
+        P2RepositoryFormats.writeJar(xml, xml.getName(), jar);
+        final File xz = new File(tempDir, P2RepositoryFormats.xzName(xml.getName()));
+        P2RepositoryFormats.writeXz(xml, xz);
+        return jar.length() + xz.length();
+    }
+
+    private static InstallableUnitIndex load(final String fragment) throws IOException {
+        final InstallableUnitIndex index = new InstallableUnitIndex();
+        index.load(P2FragmentStreams.wrap(new ByteArrayInputStream(fragment.getBytes(P2RepositoryIndex.UTF_8)),
+                P2FragmentStreams.METADATA_HEADER));
+        return index;
+    }
+
+}
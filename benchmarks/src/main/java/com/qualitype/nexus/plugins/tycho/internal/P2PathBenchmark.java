@@ -0,0 +1,89 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.qualitype.nexus.plugins.tycho.internal.P2TychoRoutingTable.Fragment;
+
+/**
+ * Path computations done for every fragment of a rebuild: routing to a p2 repository and the links its plug-ins and
+ * features need.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class P2PathBenchmark {
+
+    @Param({ "4", "8", "16" })
+    public int depth;
+
+    @Param({ "10", "1000" })
+    public int units;
+
+    private String fragmentPath;
+
+    private List<String> keys;
+
+    private P2RepositoryLayout sharded;
+
+    @Setup
+    public void setUp() {
+        final StringBuilder path = new StringBuilder();
+        for (int i = 0; i < depth - 3; i++) {
+            path.append("/group").append(i);
+        }
+        path.append("/bundles/1.0.0/bundles-1.0.0-p2artifacts.xml");
+        fragmentPath = path.toString();
+
+        keys = new ArrayList<String>(units);
+        for (int i = 0; i < units; i++) {
+            keys.add(P2RepositoryIndex.key(i % 10 == 0 ? "org.eclipse.update.feature" : "osgi.bundle",
+                    "com.example.bundle" + i, "1.0.0.v20130101-0000"));
+        }
+        sharded = P2RepositoryLayout.sharded(16);
+    }
+
+    @Benchmark
+    public Fragment fragmentOf() {
+        return P2TychoRoutingTable.fragmentOf(fragmentPath);
+    }
+
+    @Benchmark
+    public String shardedRootOf() {
+        return sharded.rootOf(fragmentPath);
+    }
+
+    @Benchmark
+    public Map<String, String> linksOf() {
+        return P2LinkReconciler.linksOf(P2RepositoryLayout.MONOLITHIC.rootOf(fragmentPath), fragmentPath, keys);
+    }
+
+}
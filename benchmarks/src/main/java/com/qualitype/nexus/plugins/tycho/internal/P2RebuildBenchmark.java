@@ -0,0 +1,122 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import static com.qualitype.nexus.plugins.tycho.internal.ReplayComponents.inject;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.qualitype.nexus.plugins.tycho.P2TychoRepositoryAggregatorConfiguration;
+
+/**
+ * Rebuilds of a p2 repository from a generated Maven repository, through the aggregator's scanAndRebuild on a
+ * {@link ReplayRepository}: scanning, manifest diff, parallel parsing, merging into the shadow repository, journal
+ * replay, link reconciliation and the staged publish of content.xml and artifacts.xml. A full rebuild applies every
+ * fragment again, an incremental one finds them all unchanged.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class P2RebuildBenchmark {
+
+    private static final String REPOSITORY_ID = "benchmark";
+
+    @Param({ "10", "100", "1000" })
+    public int builds;
+
+    @Param({ "10", "100" })
+    public int unitsPerBuild;
+
+    @Param({ "monolithic", "sharded" })
+    public String mode;
+
+    @Param({ "4" })
+    public int threads;
+
+    private File baseDir;
+
+    private File storage;
+
+    private ExecutorService executor;
+
+    private DefaultP2TychoRepositoryAggregator aggregator;
+
+    private P2TychoRepositoryAggregatorConfiguration configuration;
+
+    @Setup
+    public void setUp() throws Exception {
+        System.setProperty(DefaultP2TychoRepositoryAggregator.REBUILD_THREADS_PROPERTY, String.valueOf(threads));
+        baseDir = File.createTempFile("p2-rebuild-benchmark", "");
+        baseDir.delete();
+        storage = new File(baseDir, "storage");
+        TychoFragmentGenerator.repository(storage, builds, unitsPerBuild);
+        executor = Executors.newFixedThreadPool(threads);
+
+        final ReplayRepository replay = new ReplayRepository(REPOSITORY_ID, storage, ReplayComponents.mimeSupport());
+        final P2RepositoryLocks locks = inject(new P2RepositoryLocks());
+        aggregator = ReplayComponents.aggregator(replay, locks, new P2TychoRoutingTable(),
+                inject(new P2AggregationMetrics(locks)));
+        final Map<String, String> properties = new HashMap<String, String>();
+        properties.put(P2TychoRepositoryAggregatorConfiguration.REPOSITORY, REPOSITORY_ID);
+        properties.put(P2TychoRepositoryAggregatorConfiguration.AGGREGATION_MODE, mode);
+        configuration = new P2TychoRepositoryAggregatorConfiguration(properties);
+        aggregator.addConfiguration(configuration);
+        aggregator.enableAggregationFor(configuration);
+        // so the incremental rebuilds start from a recorded manifest
+        aggregator.scanAndRebuild(REPOSITORY_ID, null, true, null);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        aggregator.disableAggregationFor(configuration);
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+    @Benchmark
+    public int scan() throws Exception {
+        return new P2FragmentScanner(executor).scan(storage).size();
+    }
+
+    @Benchmark
+    public void fullRebuild() {
+        aggregator.scanAndRebuild(REPOSITORY_ID, null, true, null);
+    }
+
+    @Benchmark
+    public void incrementalRebuild() {
+        aggregator.scanAndRebuild(REPOSITORY_ID, null, false, null);
+    }
+
+}
@@ -0,0 +1,135 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonatype.nexus.mime.MimeSupport;
+import org.sonatype.nexus.proxy.NoSuchRepositoryException;
+import org.sonatype.nexus.proxy.registry.RepositoryRegistry;
+import org.sonatype.p2.bridge.ArtifactRepository;
+import org.sonatype.p2.bridge.MetadataRepository;
+
+/**
+ * Wires a {@link DefaultP2TychoRepositoryAggregator} to a {@link ReplayRepository} the way Nexus would: the repository
+ * registry only knows the replay repository, the p2 bridge only writes the empty repositories it is asked for, and
+ * components get the loggers Nexus would inject.
+ */
+class ReplayComponents {
+
+    private static final MimeSupport MIME_SUPPORT = stub(MimeSupport.class, new InvocationHandler() {
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            final String path = String.valueOf(args[0]);
+            if (path.endsWith(".xml")) {
+                return "application/xml";
+            }
+            return path.endsWith(".jar") ? "application/java-archive" : "application/octet-stream";
+        }
+    });
+
+    private ReplayComponents() {
+    }
+
+    static MimeSupport mimeSupport() {
+        return MIME_SUPPORT;
+    }
+
+    static DefaultP2TychoRepositoryAggregator aggregator(final ReplayRepository replay,
+            final P2RepositoryLocks locks, final P2TychoRoutingTable routingTable, final P2AggregationMetrics metrics)
+            throws IllegalAccessException {
+        final String repositoryId = replay.repository().getId();
+        final RepositoryRegistry registry = stub(RepositoryRegistry.class, new InvocationHandler() {
+
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
+                    throws NoSuchRepositoryException {
+                if ("getRepositories".equals(method.getName())) {
+                    return Collections.singletonList(replay.repository());
+                }
+                if (!repositoryId.equals(args[0])) {
+                    throw new NoSuchRepositoryException(String.valueOf(args[0]));
+                }
+                return replay.repository();
+            }
+        });
+
+        // the p2 bridge is only asked for empty repositories
+        final ArtifactRepository artifactRepository = stub(ArtifactRepository.class, new EmptyRepositoryWriter(
+                "artifacts.xml", new ArtifactDescriptorIndex()));
+        final MetadataRepository metadataRepository = stub(MetadataRepository.class, new EmptyRepositoryWriter(
+                "content.xml", new InstallableUnitIndex()));
+
+        return inject(new DefaultP2TychoRepositoryAggregator(registry, MIME_SUPPORT, artifactRepository,
+                metadataRepository, locks, routingTable, metrics, inject(new P2AggregationTracer()),
+                inject(new P2Workspaces())));
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T stub(final Class<T> type, final InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    /**
+     * Sets the logger fields Nexus would inject.
+     */
+    static <T> T inject(final T component) throws IllegalAccessException {
+        for (Class<?> type = component.getClass(); type != null; type = type.getSuperclass()) {
+            for (final Field field : type.getDeclaredFields()) {
+                if (Logger.class.equals(field.getType())) {
+                    field.setAccessible(true);
+                    field.set(component, LoggerFactory.getLogger(type));
+                }
+            }
+        }
+        return component;
+    }
+
+    /**
+     * Writes the empty repository the p2 bridge is asked for.
+     */
+    private static class EmptyRepositoryWriter implements InvocationHandler {
+
+        private final String name;
+
+        private final P2RepositoryIndex index;
+
+        EmptyRepositoryWriter(final String name, final P2RepositoryIndex index) {
+            this.name = name;
+            this.index = index;
+        }
+
+        @Override
+        public synchronized Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws IOException {
+            if (!"write".equals(method.getName()) || !((Collection<?>) args[1]).isEmpty()) {
+                throw new UnsupportedOperationException(method.getName() + " is not supported by the replay");
+            }
+            index.initialize((String) args[2]);
+            index.write(new File(new File((URI) args[0]), name));
+            return null;
+        }
+
+    }
+
+}
@@ -0,0 +1,327 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.nexus.mime.MimeSupport;
+import org.sonatype.nexus.proxy.ItemNotFoundException;
+import org.sonatype.nexus.proxy.LocalStorageException;
+import org.sonatype.nexus.proxy.ResourceStoreRequest;
+import org.sonatype.nexus.proxy.events.EventInspector;
+import org.sonatype.nexus.proxy.events.RepositoryItemEventDeleteItem;
+import org.sonatype.nexus.proxy.events.RepositoryItemEventStoreCreate;
+import org.sonatype.nexus.proxy.events.RepositoryItemEventStoreUpdate;
+import org.sonatype.nexus.proxy.item.AbstractStorageItem;
+import org.sonatype.nexus.proxy.item.DefaultStorageCollectionItem;
+import org.sonatype.nexus.proxy.item.DefaultStorageFileItem;
+import org.sonatype.nexus.proxy.item.DefaultStorageLinkItem;
+import org.sonatype.nexus.proxy.item.FileContentLocator;
+import org.sonatype.nexus.proxy.item.RepositoryItemUid;
+import org.sonatype.nexus.proxy.item.RepositoryItemUidLock;
+import org.sonatype.nexus.proxy.item.StorageFileItem;
+import org.sonatype.nexus.proxy.item.StorageItem;
+import org.sonatype.nexus.proxy.item.StorageLinkItem;
+import org.sonatype.nexus.proxy.repository.Repository;
+import org.sonatype.nexus.proxy.storage.local.fs.DefaultFSLocalRepositoryStorage;
+import org.sonatype.plexus.appevents.Event;
+
+/**
+ * Stand-in for a hosted Nexus repository, so deploys can be replayed without a Nexus server. Items are kept below a
+ * directory (links as "LINK to" files, like the Nexus file system storage does), every store and delete is dispatched
+ * to the registered event inspectors the way Nexus does, and item locks are exclusive in-memory locks. Only the parts
+ * of {@link Repository} the aggregator uses are supported.
+ */
+class ReplayRepository implements InvocationHandler {
+
+    private static final String LINK_PREFIX = "LINK to ";
+
+    private final String id;
+
+    private final File baseDir;
+
+    private final MimeSupport mimeSupport;
+
+    private final Repository repository;
+
+    private final LocalStorage localStorage;
+
+    private final List<EventInspector> inspectors = new CopyOnWriteArrayList<EventInspector>();
+
+    private final ConcurrentMap<String, ReentrantLock> locks = new ConcurrentHashMap<String, ReentrantLock>();
+
+    ReplayRepository(final String id, final File baseDir, final MimeSupport mimeSupport) {
+        this.id = id;
+        this.baseDir = baseDir;
+        this.mimeSupport = mimeSupport;
+        repository = (Repository) Proxy.newProxyInstance(Repository.class.getClassLoader(),
+                new Class<?>[] { Repository.class }, this);
+        localStorage = new LocalStorage(mimeSupport);
+    }
+
+    Repository repository() {
+        return repository;
+    }
+
+    File baseDir() {
+        return baseDir;
+    }
+
+    void addInspector(final EventInspector inspector) {
+        inspectors.add(inspector);
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        final String name = method.getName();
+        if ("getId".equals(name) || "getName".equals(name)) {
+            return id;
+        } else if ("getLocalUrl".equals(name)) {
+            return baseDir.toURI().toString();
+        } else if ("getLocalStorage".equals(name)) {
+            return localStorage;
+        } else if ("createUid".equals(name)) {
+            return uid((String) args[0]);
+        } else if ("retrieveItem".equals(name)) {
+            return item((ResourceStoreRequest) args[args.length - 1]);
+        } else if ("storeItem".equals(name)) {
+            store((StorageItem) args[args.length - 1]);
+            return null;
+        } else if ("deleteItem".equals(name)) {
+            delete((ResourceStoreRequest) args[args.length - 1]);
+            return null;
+        } else if ("equals".equals(name)) {
+            return proxy == args[0];
+        } else if ("hashCode".equals(name)) {
+            return id.hashCode();
+        } else if ("toString".equals(name)) {
+            return "ReplayRepository[" + id + "]";
+        }
+        throw new UnsupportedOperationException(name + " is not supported by the replay repository");
+    }
+
+    File fileOf(final String path) {
+        return new File(baseDir, path.startsWith("/") ? path.substring(1) : path);
+    }
+
+    @SuppressWarnings("deprecation")
+    private AbstractStorageItem item(final ResourceStoreRequest request) throws ItemNotFoundException,
+            LocalStorageException {
+        final File file = fileOf(request.getRequestPath());
+        if (file.isDirectory()) {
+            return new DefaultStorageCollectionItem(repository, request, true, true);
+        }
+        if (!file.isFile()) {
+            throw new ItemNotFoundException(request);
+        }
+        final String target = linkTarget(file);
+        if (target != null) {
+            return new DefaultStorageLinkItem(repository, request, true, true, uid(target));
+        }
+        return new DefaultStorageFileItem(repository, request, true, true, new FileContentLocator(file,
+                mimeSupport.guessMimeTypeFromPath(file.getName())));
+    }
+
+    private void store(final StorageItem item) throws LocalStorageException {
+        final File file = fileOf(item.getPath());
+        final boolean existed = file.exists();
+        try {
+            if (item instanceof StorageLinkItem) {
+                write(file, new ByteArrayInputStream((LINK_PREFIX + ((StorageLinkItem) item).getTarget()
+                        .getPath()).getBytes(P2RepositoryIndex.UTF_8)));
+            } else if (item instanceof StorageFileItem) {
+                write(file, ((StorageFileItem) item).getInputStream());
+            } else if (!file.mkdirs() && !file.isDirectory()) {
+                throw new IOException("Could not create " + file);
+            }
+        } catch (final IOException e) {
+            throw new LocalStorageException("Could not store " + item.getPath(), e);
+        }
+        dispatch(existed ? new RepositoryItemEventStoreUpdate(repository, item) : new RepositoryItemEventStoreCreate(
+                repository, item));
+    }
+
+    @SuppressWarnings("deprecation")
+    private void delete(final ResourceStoreRequest request) throws ItemNotFoundException, LocalStorageException {
+        final StorageItem item = item(request);
+        final File file = fileOf(request.getRequestPath());
+        try {
+            if (file.isDirectory()) {
+                FileUtils.deleteDirectory(file);
+            } else if (!file.delete()) {
+                throw new ItemNotFoundException(request);
+            }
+        } catch (final IOException e) {
+            throw new LocalStorageException("Could not delete " + request.getRequestPath(), e);
+        }
+        dispatch(new RepositoryItemEventDeleteItem(repository, item));
+    }
+
+    private void dispatch(final Event<?> event) {
+        for (final EventInspector inspector : inspectors) {
+            if (inspector.accepts(event)) {
+                inspector.inspect(event);
+            }
+        }
+    }
+
+    private RepositoryItemUid uid(final String path) {
+        return (RepositoryItemUid) Proxy.newProxyInstance(RepositoryItemUid.class.getClassLoader(),
+                new Class<?>[] { RepositoryItemUid.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        final String name = method.getName();
+                        if ("getRepository".equals(name)) {
+                            return repository;
+                        } else if ("getPath".equals(name)) {
+                            return path;
+                        } else if ("getLock".equals(name)) {
+                            return lock(path);
+                        } else if ("equals".equals(name)) {
+                            return args[0] instanceof RepositoryItemUid
+                                    && path.equals(((RepositoryItemUid) args[0]).getPath());
+                        } else if ("hashCode".equals(name)) {
+                            return path.hashCode();
+                        } else if ("toString".equals(name)) {
+                            return id + ":" + path;
+                        }
+                        throw new UnsupportedOperationException(name + " is not supported by the replay repository");
+                    }
+                });
+    }
+
+    private RepositoryItemUidLock lock(final String path) {
+        ReentrantLock lock = locks.get(path);
+        if (lock == null) {
+            final ReentrantLock created = new ReentrantLock();
+            lock = locks.putIfAbsent(path, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        final ReentrantLock held = lock;
+        return (RepositoryItemUidLock) Proxy.newProxyInstance(RepositoryItemUidLock.class.getClassLoader(),
+                new Class<?>[] { RepositoryItemUidLock.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        final String name = method.getName();
+                        if ("lock".equals(name)) {
+                            held.lock();
+                            return null;
+                        } else if ("unlock".equals(name)) {
+                            held.unlock();
+                            return null;
+                        } else if ("hashCode".equals(name)) {
+                            return System.identityHashCode(proxy);
+                        } else if ("equals".equals(name)) {
+                            return proxy == args[0];
+                        } else if ("toString".equals(name)) {
+                            return "lock of " + id + ":" + path;
+                        }
+                        throw new UnsupportedOperationException(name + " is not supported by the replay repository");
+                    }
+                });
+    }
+
+    /**
+     * @return path of the item given file links to, or null if it is not a link
+     */
+    private static String linkTarget(final File file) throws LocalStorageException {
+        if (file.length() > 4096) {
+            return null;
+        }
+        final InputStream in;
+        try {
+            in = new FileInputStream(file);
+            try {
+                final String content = new String(IOUtil.toByteArray(in), P2RepositoryIndex.UTF_8);
+                return content.startsWith(LINK_PREFIX) ? content.substring(LINK_PREFIX.length()).trim() : null;
+            } finally {
+                IOUtil.close(in);
+            }
+        } catch (final IOException e) {
+            throw new LocalStorageException("Could not read " + file, e);
+        }
+    }
+
+    /**
+     * Writes next to the target first, so readers never see a partially written item.
+     */
+    private static void write(final File file, final InputStream in) throws IOException {
+        try {
+            if (!file.getParentFile().mkdirs() && !file.getParentFile().isDirectory()) {
+                throw new IOException("Could not create " + file.getParentFile());
+            }
+            final File temp = new File(file.getParentFile(), "." + file.getName() + ".replay");
+            final OutputStream out = new FileOutputStream(temp);
+            try {
+                IOUtil.copy(in, out);
+            } finally {
+                IOUtil.close(out);
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Could not write " + file);
+            }
+        } finally {
+            IOUtil.close(in);
+        }
+    }
+
+    private class LocalStorage extends DefaultFSLocalRepositoryStorage {
+
+        LocalStorage(final MimeSupport mimeSupport) {
+            super(null, null, mimeSupport, null);
+        }
+
+        @Override
+        public File getBaseDir(final Repository repository, final ResourceStoreRequest request) {
+            return baseDir;
+        }
+
+        @Override
+        public File getFileFromBase(final Repository repository, final ResourceStoreRequest request) {
+            return fileOf(request.getRequestPath());
+        }
+
+        @Override
+        public AbstractStorageItem retrieveItem(final Repository repository, final ResourceStoreRequest request)
+                throws ItemNotFoundException, LocalStorageException {
+            return item(request);
+        }
+
+        @Override
+        public boolean containsItem(final Repository repository, final ResourceStoreRequest request) {
+            return fileOf(request.getRequestPath()).exists();
+        }
+
+    }
+
+}
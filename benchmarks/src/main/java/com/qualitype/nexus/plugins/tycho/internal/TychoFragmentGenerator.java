@@ -0,0 +1,117 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Generates synthetic Tycho fragments (p2metadata.xml / p2artifacts.xml, as deployed by Tycho without a repository
+ * element) and Maven repository trees of them, so benchmarks can measure how the aggregation scales with the number of
+ * units per fragment and the number of builds in a repository.
+ */
+class TychoFragmentGenerator {
+
+    private TychoFragmentGenerator() {
+    }
+
+    /**
+     * @param build distinguishes the units of different builds
+     * @param units number of installable units (bundles)
+     */
+    static String metadataFragment(final int build, final int units) {
+        final StringBuilder xml = new StringBuilder(units * 640);
+        xml.append("<?xml version='1.0' encoding='UTF-8'?>\n");
+        xml.append("<units size='").append(units).append("'>\n");
+        for (int i = 0; i < units; i++) {
+            final String id = bundleId(build, i);
+            xml.append("  <unit id='").append(id).append("' version='1.0.0.v20130101-0000'>\n");
+            xml.append("    <update id='").append(id)
+                    .append("' range='[0.0.0,1.0.0.v20130101-0000)' severity='0'/>\n");
+            xml.append("    <properties size='2'>\n");
+            xml.append("      <property name='org.eclipse.equinox.p2.name' value='Bundle ").append(i)
+                    .append("'/>\n");
+            xml.append("      <property name='maven-groupId' value='com.example.build").append(build)
+                    .append("'/>\n");
+            xml.append("    </properties>\n");
+            xml.append("    <provides size='2'>\n");
+            xml.append("      <provided namespace='org.eclipse.equinox.p2.iu' name='").append(id)
+                    .append("' version='1.0.0.v20130101-0000'/>\n");
+            xml.append("      <provided namespace='osgi.bundle' name='").append(id)
+                    .append("' version='1.0.0.v20130101-0000'/>\n");
+            xml.append("    </provides>\n");
+            xml.append("    <artifacts size='1'>\n");
+            xml.append("      <artifact classifier='osgi.bundle' id='").append(id)
+                    .append("' version='1.0.0.v20130101-0000'/>\n");
+            xml.append("    </artifacts>\n");
+            xml.append("    <touchpoint id='org.eclipse.equinox.p2.osgi' version='1.0.0'/>\n");
+            xml.append("  </unit>\n");
+        }
+        xml.append("</units>\n");
+        return xml.toString();
+    }
+
+    static String artifactsFragment(final int build, final int units) {
+        final StringBuilder xml = new StringBuilder(units * 320);
+        xml.append("<?xml version='1.0' encoding='UTF-8'?>\n");
+        xml.append("<artifacts size='").append(units).append("'>\n");
+        for (int i = 0; i < units; i++) {
+            xml.append("  <artifact classifier='osgi.bundle' id='").append(bundleId(build, i))
+                    .append("' version='1.0.0.v20130101-0000'>\n");
+            xml.append("    <properties size='2'>\n");
+            xml.append("      <property name='artifact.size' value='").append(1024 + i).append("'/>\n");
+            xml.append("      <property name='download.size' value='").append(1024 + i).append("'/>\n");
+            xml.append("    </properties>\n");
+            xml.append("  </artifact>\n");
+        }
+        xml.append("</artifacts>\n");
+        return xml.toString();
+    }
+
+    /**
+     * Writes a Maven layout repository of given number of builds, each deploying a jar with its p2metadata.xml and
+     * p2artifacts.xml.
+     * @return the repository base directory
+     */
+    static File repository(final File baseDir, final int builds, final int unitsPerBuild) throws IOException {
+        for (int build = 0; build < builds; build++) {
+            final String artifactId = "build" + build;
+            final File directory = new File(baseDir, "com/example/group" + (build % 10) + "/" + artifactId + "/1.0.0");
+            if (!directory.mkdirs() && !directory.isDirectory()) {
+                throw new IOException("Could not create " + directory);
+            }
+            final String prefix = artifactId + "-1.0.0";
+            write(new File(directory, prefix + ".jar"), "");
+            write(new File(directory, prefix + "-p2metadata.xml"), metadataFragment(build, unitsPerBuild));
+            write(new File(directory, prefix + "-p2artifacts.xml"), artifactsFragment(build, unitsPerBuild));
+        }
+        return baseDir;
+    }
+
+    private static String bundleId(final int build, final int unit) {
+        return "com.example.build" + build + ".bundle" + unit;
+    }
+
+    private static void write(final File file, final String content) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(P2RepositoryIndex.UTF_8));
+        } finally {
+            IOUtil.close(out);
+        }
+    }
+
+}
@@ -11,7 +11,10 @@
  */
 package com.qualitype.nexus.plugins.tycho;
 
+import java.util.Collection;
+
 import org.sonatype.nexus.proxy.item.StorageItem;
+import org.sonatype.scheduling.ProgressListener;
 
 public interface P2TychoRepositoryAggregator {
 
@@ -33,8 +36,39 @@ public interface P2TychoRepositoryAggregator {
 
     void removeP2Metadata(StorageItem item);
 
+    /**
+     * Applies a batch of stored and deleted p2 fragments (p2artifacts.xml / p2metadata.xml) of one repository and
+     * publishes the aggregated p2 repository once.
+     */
+    void updateP2Repository(String repositoryId, Collection<StorageItem> stored, Collection<StorageItem> deleted);
+
     void scanAndRebuild(String repositoryId);
 
+    /**
+     * Rebuilds the aggregated p2 repository, applying only fragments added, changed or removed since the last rebuild
+     * unless a full rebuild is forced (or required by fragments recorded without their contributions). Fragments are
+     * scanned and merged into shadows of the p2 repositories concerned, which are written out with their compressed
+     * forms while the p2 repository keeps taking updates. Only replaying those onto the result and swapping it in
+     * holds the locks of the p2 repository.
+     */
+    void scanAndRebuild(String repositoryId, boolean forceFull);
+
+    /**
+     * Rebuilds the part of the aggregated p2 repository that comes from fragments below given repository path: they are
+     * all applied again, replacing what they contributed before, and fragments no longer found there are taken back.
+     * The rest of the aggregated p2 repository is left untouched. A null or root path rebuilds the whole p2 repository.
+     * The rebuild stops, without changing the p2 repository, once given (optional) progress listener is canceled.
+     */
+    void scanAndRebuild(String repositoryId, String resourceStorePath, boolean forceFull, ProgressListener progress);
+
     void scanAndRebuild();
 
+    void scanAndRebuild(boolean forceFull);
+
+    /**
+     * Rebuilds the aggregated p2 repositories of all repositories with an aggregator configuration, several
+     * repositories at a time. Stops once given (optional) progress listener is canceled.
+     */
+    void scanAndRebuild(boolean forceFull, ProgressListener progress);
+
 }
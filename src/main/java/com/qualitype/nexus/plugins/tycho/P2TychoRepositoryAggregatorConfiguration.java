@@ -22,11 +22,77 @@ public class P2TychoRepositoryAggregatorConfiguration
 
     public static final String REPOSITORY = "repositoryId";
 
+    public static final String COALESCING_WINDOW = "coalescingWindow";
+
+    public static final long DEFAULT_COALESCING_WINDOW = 2000;
+
+    public static final String COALESCING_MAX_DELAY = "coalescingMaxDelay";
+
+    public static final long DEFAULT_COALESCING_MAX_DELAY = 30000;
+
+    public static final String AGGREGATION_MODE = "aggregationMode";
+
+    /**
+     * All fragments are aggregated into one content.xml / artifacts.xml.
+     */
+    public static final String MONOLITHIC = "monolithic";
+
+    /**
+     * Fragments of each deployed build (GAV) are aggregated into their own child repository, tied together by
+     * compositeContent.xml / compositeArtifacts.xml.
+     */
+    public static final String COMPOSITE = "composite";
+
+    /**
+     * Fragments are aggregated into a fixed number of shard repositories (by Maven groupId), tied together by
+     * compositeContent.xml / compositeArtifacts.xml.
+     */
+    public static final String SHARDED = "sharded";
+
+    public static final String DEFAULT_AGGREGATION_MODE = MONOLITHIC;
+
+    public static final String SHARD_COUNT = "shardCount";
+
+    public static final int DEFAULT_SHARD_COUNT = 16;
+
+    public static final String MERGE_ENGINE = "mergeEngine";
+
+    /**
+     * Aggregated content.xml / artifacts.xml are kept in memory as a whole.
+     */
+    public static final String INDEX = "index";
+
+    /**
+     * Only the keys of the aggregated units / artifacts are kept in memory, the rest is streamed from the published
+     * content.xml / artifacts.xml whenever they get published again. This bounds the memory of incremental updates
+     * only: a full rebuild still holds all units / artifacts it merges in memory until they are published.
+     */
+    public static final String STREAMING = "streaming";
+
+    public static final String DEFAULT_MERGE_ENGINE = INDEX;
+
     private final String repositoryId;
 
+    private final long coalescingWindow;
+
+    private final long coalescingMaxDelay;
+
+    private final String aggregationMode;
+
+    private final int shardCount;
+
+    private final String mergeEngine;
+
     public P2TychoRepositoryAggregatorConfiguration( final Map<String, String> properties )
     {
         repositoryId = properties.get( REPOSITORY );
+        coalescingWindow = parseLong( properties.get( COALESCING_WINDOW ), DEFAULT_COALESCING_WINDOW );
+        coalescingMaxDelay = Math.max( coalescingWindow,
+            parseLong( properties.get( COALESCING_MAX_DELAY ), DEFAULT_COALESCING_MAX_DELAY ) );
+        aggregationMode = parseMode( properties.get( AGGREGATION_MODE ) );
+        shardCount = (int) Math.max( 1, Math.min( Integer.MAX_VALUE,
+            parseLong( properties.get( SHARD_COUNT ), DEFAULT_SHARD_COUNT ) ) );
+        mergeEngine = parseEngine( properties.get( MERGE_ENGINE ) );
     }
 
     public String repositoryId()
@@ -34,6 +100,86 @@ public class P2TychoRepositoryAggregatorConfiguration
         return repositoryId;
     }
 
+    /**
+     * @return quiet time (in milliseconds) after the last p2 fragment event before the events collected so far are
+     *         aggregated in one go
+     */
+    public long coalescingWindow()
+    {
+        return coalescingWindow;
+    }
+
+    /**
+     * @return time (in milliseconds) after the first p2 fragment event of a batch the batch is aggregated at the
+     *         latest, even if events keep arriving
+     */
+    public long coalescingMaxDelay()
+    {
+        return coalescingMaxDelay;
+    }
+
+    /**
+     * @return how fragments are aggregated, one of {@link #MONOLITHIC}, {@link #COMPOSITE} or {@link #SHARDED}
+     */
+    public String aggregationMode()
+    {
+        return aggregationMode;
+    }
+
+    /**
+     * @return number of shard repositories fragments are partitioned into (in {@link #SHARDED} mode)
+     */
+    public int shardCount()
+    {
+        return shardCount;
+    }
+
+    /**
+     * @return how aggregated p2 repositories are held, one of {@link #INDEX} or {@link #STREAMING}
+     */
+    public String mergeEngine()
+    {
+        return mergeEngine;
+    }
+
+    private static String parseMode( final String value )
+    {
+        if ( value != null && COMPOSITE.equalsIgnoreCase( value.trim() ) )
+        {
+            return COMPOSITE;
+        }
+        if ( value != null && SHARDED.equalsIgnoreCase( value.trim() ) )
+        {
+            return SHARDED;
+        }
+        return DEFAULT_AGGREGATION_MODE;
+    }
+
+    private static String parseEngine( final String value )
+    {
+        if ( value != null && STREAMING.equalsIgnoreCase( value.trim() ) )
+        {
+            return STREAMING;
+        }
+        return DEFAULT_MERGE_ENGINE;
+    }
+
+    private static long parseLong( final String value, final long defaultValue )
+    {
+        if ( value == null || value.trim().length() == 0 )
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Math.max( 0, Long.parseLong( value.trim() ) );
+        }
+        catch ( final NumberFormatException e )
+        {
+            return defaultValue;
+        }
+    }
+
     @Override
     public int hashCode()
     {
@@ -82,7 +228,18 @@ public class P2TychoRepositoryAggregatorConfiguration
         {
             builder.append( "repositoryId=" );
             builder.append( repositoryId );
+            builder.append( ", " );
         }
+        builder.append( "coalescingWindow=" );
+        builder.append( coalescingWindow );
+        builder.append( ", coalescingMaxDelay=" );
+        builder.append( coalescingMaxDelay );
+        builder.append( ", aggregationMode=" );
+        builder.append( aggregationMode );
+        builder.append( ", shardCount=" );
+        builder.append( shardCount );
+        builder.append( ", mergeEngine=" );
+        builder.append( mergeEngine );
         builder.append( "]" );
         return builder.toString();
     }
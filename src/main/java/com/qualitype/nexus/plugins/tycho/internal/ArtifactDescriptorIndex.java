@@ -0,0 +1,44 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Artifact descriptors (including their properties and processing steps) of a p2 artifact repository
+ * (artifacts.xml), keyed by classifier, id and version.
+ */
+class ArtifactDescriptorIndex extends P2RepositoryIndex {
+
+    ArtifactDescriptorIndex() {
+        super("artifacts", "artifact", P2FragmentStreams.ARTIFACTS_HEADER);
+    }
+
+    @Override
+    String keyOf(final XMLStreamReader reader) {
+        return key(reader.getAttributeValue(null, "classifier"), reader.getAttributeValue(null, "id"),
+                reader.getAttributeValue(null, "version"));
+    }
+
+    static String classifier(final String key) {
+        return key.split("/")[0];
+    }
+
+    static String id(final String key) {
+        return key.split("/")[1];
+    }
+
+    static String version(final String key) {
+        return key.split("/")[2];
+    }
+
+}
@@ -12,47 +12,50 @@
 package com.qualitype.nexus.plugins.tycho.internal;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.qualitype.nexus.plugins.tycho.internal.NexusUtils.getRelativePath;
-import static com.qualitype.nexus.plugins.tycho.internal.NexusUtils.isHidden;
 import static com.qualitype.nexus.plugins.tycho.internal.NexusUtils.localStorageOfRepositoryAsFile;
 import static com.qualitype.nexus.plugins.tycho.internal.NexusUtils.retrieveFile;
-import static com.qualitype.nexus.plugins.tycho.internal.NexusUtils.retrieveItem;
 import static com.qualitype.nexus.plugins.tycho.internal.NexusUtils.safeRetrieveFile;
 import static com.qualitype.nexus.plugins.tycho.internal.NexusUtils.safeRetrieveItem;
 import static com.qualitype.nexus.plugins.tycho.internal.NexusUtils.storeItem;
-import static com.qualitype.nexus.plugins.tycho.internal.P2TychoArtifactsEventsInspector.isP2ArtifactsXML;
-import static com.qualitype.nexus.plugins.tycho.internal.P2TychoMetadataEventsInspector.isP2ContentXML;
-import static org.codehaus.plexus.util.FileUtils.deleteDirectory;
+import static com.qualitype.nexus.plugins.tycho.internal.P2TychoRoutingTable.isP2ArtifactsXML;
+import static com.qualitype.nexus.plugins.tycho.internal.P2TychoRoutingTable.isP2ContentXML;
 import static org.sonatype.nexus.plugins.p2.repository.P2Constants.P2_REPOSITORY_ROOT_PATH;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
-import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.IOUtil;
 import org.slf4j.Logger;
 import org.sonatype.nexus.mime.MimeSupport;
 import org.sonatype.nexus.plugins.p2.repository.P2Constants;
 import org.sonatype.nexus.proxy.NoSuchRepositoryException;
 import org.sonatype.nexus.proxy.ResourceStoreRequest;
-import org.sonatype.nexus.proxy.access.Action;
-import org.sonatype.nexus.proxy.item.RepositoryItemUid;
 import org.sonatype.nexus.proxy.item.StorageItem;
 import org.sonatype.nexus.proxy.registry.RepositoryRegistry;
 import org.sonatype.nexus.proxy.repository.Repository;
@@ -60,28 +63,45 @@ import org.sonatype.p2.bridge.ArtifactRepository;
 import org.sonatype.p2.bridge.MetadataRepository;
 import org.sonatype.p2.bridge.model.InstallableArtifact;
 import org.sonatype.p2.bridge.model.InstallableUnit;
-import org.sonatype.sisu.resource.scanner.helper.ListenerSupport;
-import org.sonatype.sisu.resource.scanner.scanners.SerialScanner;
+import org.sonatype.scheduling.ProgressListener;
 
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.qualitype.nexus.plugins.tycho.P2TychoRepositoryAggregator;
 import com.qualitype.nexus.plugins.tycho.P2TychoRepositoryAggregatorConfiguration;
+import com.qualitype.nexus.plugins.tycho.internal.P2AggregationMetrics.Operation;
+import com.qualitype.nexus.plugins.tycho.internal.P2AggregationMetrics.RepositoryMetrics;
+import com.qualitype.nexus.plugins.tycho.internal.P2AggregationTrace.Phase;
+import com.qualitype.nexus.plugins.tycho.internal.P2RepositoryLocks.Domain;
+import com.qualitype.nexus.plugins.tycho.internal.P2RepositoryLocks.Held;
+import com.qualitype.nexus.plugins.tycho.internal.P2Workspaces.Workspace;
 
 @Named
 @Singleton
 public class DefaultP2TychoRepositoryAggregator implements P2TychoRepositoryAggregator {
 
-    private static final String UNDERSCORE = "_";
-
-    private static final String JAR = ".jar";
-
     private static final String ARTIFACTS_XML = "artifacts.xml";
 
     private static final String CONTENT_XML = "content.xml";
 
+    static final String REBUILD_THREADS_PROPERTY = "p2.tycho.aggregator.rebuildThreads";
+
+    /**
+     * Number of repositories rebuilt at a time when rebuilding all of them.
+     */
+    static final String REBUILD_REPOSITORIES_PROPERTY = "p2.tycho.aggregator.rebuildRepositories";
+
+    private static final int DEFAULT_REBUILD_REPOSITORIES = 2;
+
+    /**
+     * Qualifies the staging files a rebuild writes without holding the locks.
+     */
+    private static final String REBUILD_STAGE = "rebuild";
+
     @Inject
     private Logger logger;
 
-    private final Map<String, P2TychoRepositoryAggregatorConfiguration> configurations;
+    private final P2TychoRoutingTable routingTable;
 
     private final RepositoryRegistry repositories;
 
@@ -91,19 +111,54 @@ public class DefaultP2TychoRepositoryAggregator implements P2TychoRepositoryAggr
 
     private final MetadataRepository metadataRepository;
 
+    /**
+     * In-memory indexes of aggregated p2 repositories, keyed by repository id + p2 repository root path.
+     */
+    private final ConcurrentMap<String, ArtifactDescriptorIndex> artifactsIndexes;
+
+    private final ConcurrentMap<String, InstallableUnitIndex> contentIndexes;
+
+    private final ConcurrentMap<String, P2CompositeIndex> compositeIndexes;
+
+    private final ConcurrentMap<String, P2FragmentManifest> manifests;
+
+    /**
+     * Fragment events of repositories being rebuilt, keyed by repository id.
+     */
+    private final ConcurrentMap<String, RebuildJournal> journals;
+
+    private final P2RepositoryLocks locks;
+
+    private final P2AggregationMetrics metrics;
+
+    private final P2AggregationTracer tracer;
+
+    private final P2Workspaces workspaces;
+
     @Inject
     public DefaultP2TychoRepositoryAggregator(final RepositoryRegistry repositories, final MimeSupport mimeUtil,
-            final ArtifactRepository artifactRepository, final MetadataRepository metadataRepository) {
+            final ArtifactRepository artifactRepository, final MetadataRepository metadataRepository,
+            final P2RepositoryLocks locks, final P2TychoRoutingTable routingTable,
+            final P2AggregationMetrics metrics, final P2AggregationTracer tracer, final P2Workspaces workspaces) {
         this.repositories = repositories;
+        this.routingTable = routingTable;
+        this.locks = locks;
+        this.metrics = metrics;
+        this.tracer = tracer;
+        this.workspaces = workspaces;
         this.mimeUtil = mimeUtil;
         this.artifactRepository = artifactRepository;
         this.metadataRepository = metadataRepository;
-        configurations = new HashMap<String, P2TychoRepositoryAggregatorConfiguration>();
+        artifactsIndexes = new ConcurrentHashMap<String, ArtifactDescriptorIndex>();
+        contentIndexes = new ConcurrentHashMap<String, InstallableUnitIndex>();
+        compositeIndexes = new ConcurrentHashMap<String, P2CompositeIndex>();
+        manifests = new ConcurrentHashMap<String, P2FragmentManifest>();
+        journals = new ConcurrentHashMap<String, RebuildJournal>();
     }
 
     @Override
     public P2TychoRepositoryAggregatorConfiguration getConfiguration(final String repositoryId) {
-        return configurations.get(repositoryId);
+        return routingTable.configurationOf(repositoryId);
     }
 
     @Override
@@ -113,12 +168,11 @@ public class DefaultP2TychoRepositoryAggregator implements P2TychoRepositoryAggr
             final StorageItem p2Dir = safeRetrieveItem(repository, P2_REPOSITORY_ROOT_PATH);
             // create if it does not exist
             if (p2Dir == null) {
-                final RepositoryItemUid p2RepoUid = repository.createUid(P2_REPOSITORY_ROOT_PATH);
+                final Held held = locks.lockAll(repository);
                 try {
-                    p2RepoUid.getLock().lock(Action.create);
-                    createP2Repository(repository);
+                    createP2Repository(repository, P2RepositoryLayout.of(configuration));
                 } finally {
-                    p2RepoUid.getLock().unlock();
+                    held.unlock();
                 }
             }
         } catch (final NoSuchRepositoryException e) {
@@ -132,13 +186,13 @@ public class DefaultP2TychoRepositoryAggregator implements P2TychoRepositoryAggr
     public void removeConfiguration(final P2TychoRepositoryAggregatorConfiguration configuration) {
         try {
             final Repository repository = repositories.getRepository(configuration.repositoryId());
-            final RepositoryItemUid p2RepoUid = repository.createUid(P2_REPOSITORY_ROOT_PATH);
+            final Held held = locks.lockAll(repository);
             try {
-                p2RepoUid.getLock().lock(Action.create);
                 final ResourceStoreRequest request = new ResourceStoreRequest(P2_REPOSITORY_ROOT_PATH);
                 repository.deleteItem(request);
+                forget(repository.getId());
             } finally {
-                p2RepoUid.getLock().unlock();
+                held.unlock();
             }
         } catch (final Exception e) {
             logger.warn(String.format("Could not delete P2 repository [%s:%s] due to [%s]",
@@ -148,155 +202,337 @@ public class DefaultP2TychoRepositoryAggregator implements P2TychoRepositoryAggr
 
     @Override
     public void enableAggregationFor(final P2TychoRepositoryAggregatorConfiguration configuration) {
-        configurations.put(checkNotNull(configuration).repositoryId(), configuration);
+        routingTable.add(checkNotNull(configuration));
+        metrics.register(configuration.repositoryId());
     }
 
     @Override
     public void disableAggregationFor(final P2TychoRepositoryAggregatorConfiguration configuration) {
-        configurations.remove(checkNotNull(configuration).repositoryId());
+        routingTable.remove(checkNotNull(configuration).repositoryId());
+        metrics.unregister(configuration.repositoryId());
+        forget(configuration.repositoryId());
     }
 
     @Override
     public void updateP2Artifacts(final StorageItem item) {
-        final P2TychoRepositoryAggregatorConfiguration configuration = getConfiguration(item.getRepositoryId());
-        if (configuration == null) {
-            return;
-        }
-        logger.debug("Updating P2 repository artifacts (update) for [{}:{}]", item.getRepositoryId(), item.getPath());
-        try {
-            final Repository repository = repositories.getRepository(configuration.repositoryId());
-            final RepositoryItemUid p2RepoUid = repository.createUid(P2_REPOSITORY_ROOT_PATH);
-            File destinationP2Repository = null;
-            try {
-                p2RepoUid.getLock().lock(Action.update);
+        updateP2Repository(item.getRepositoryId(), Collections.singletonList(item),
+                Collections.<StorageItem> emptyList());
+    }
 
-                // copy repository artifacts to a temporary location
-                destinationP2Repository = createTemporaryP2Repository();
-                final File artifactsInRepository = getP2Artifacts(configuration, repository);
-                final File tempArtifacts = new File(destinationP2Repository, artifactsInRepository.getName());
-                FileUtils.copyFile(artifactsInRepository, tempArtifacts);
-                updateP2Artifacts(repository, retrieveFile(repository, item.getPath()), destinationP2Repository);
+    @Override
+    public void removeP2Artifacts(final StorageItem item) {
+        updateP2Repository(item.getRepositoryId(), Collections.<StorageItem> emptyList(),
+                Collections.singletonList(item));
+    }
 
-                // copy repository artifacts back to exposed location
-                FileUtils.copyFile(tempArtifacts, artifactsInRepository);
-            } finally {
-                p2RepoUid.getLock().unlock();
-                deleteDirectory(destinationP2Repository);
-            }
-        } catch (final Exception e) {
-            logger.warn(
-                    String.format("Could not update P2 repository [%s:%s] with [%s] due to [%s]",
-                            configuration.repositoryId(), P2_REPOSITORY_ROOT_PATH, item.getPath(), e.getMessage()), e);
-        }
+    @Override
+    public void updateP2Metadata(final StorageItem item) {
+        updateP2Repository(item.getRepositoryId(), Collections.singletonList(item),
+                Collections.<StorageItem> emptyList());
     }
 
     @Override
-    public void removeP2Artifacts(final StorageItem item) {
-        final P2TychoRepositoryAggregatorConfiguration configuration = getConfiguration(item.getRepositoryId());
+    public void removeP2Metadata(final StorageItem item) {
+        updateP2Repository(item.getRepositoryId(), Collections.<StorageItem> emptyList(),
+                Collections.singletonList(item));
+    }
+
+    @Override
+    public void updateP2Repository(final String repositoryId, final Collection<StorageItem> stored,
+            final Collection<StorageItem> deleted) {
+        final P2TychoRepositoryAggregatorConfiguration configuration = getConfiguration(repositoryId);
         if (configuration == null) {
             return;
         }
-        logger.debug("Updating P2 repository artifacts (remove) for [{}:{}]", item.getRepositoryId(), item.getPath());
+        final RebuildJournal journal = journals.get(repositoryId);
+        if (journal != null) {
+            journal.record(stored, deleted);
+        }
+        final P2AggregationTrace trace = tracer.start(repositoryId, "update",
+                P2AggregationTracer.detailOf(stored, deleted));
         try {
             final Repository repository = repositories.getRepository(configuration.repositoryId());
-            final RepositoryItemUid p2RepoUid = repository.createUid(P2_REPOSITORY_ROOT_PATH);
-            File destinationP2Repository = null;
-            try {
-                p2RepoUid.getLock().lock(Action.update);
+            final P2RepositoryLayout layout = P2RepositoryLayout.of(configuration);
 
-                // copy repository artifacts to a temporary location
-                destinationP2Repository = createTemporaryP2Repository();
-                final File artifacts = getP2Artifacts(configuration, repository);
-                final File tempArtifacts = new File(destinationP2Repository, artifacts.getName());
-                FileUtils.copyFile(artifacts, tempArtifacts);
-                removeP2Artifacts(repository, retrieveFile(repository, item.getPath()), destinationP2Repository);
+            // artifacts and metadata are independent, each only holds its own lock
+            final Set<String> roots = new TreeSet<String>();
+            roots.addAll(applyP2Artifacts(repository, layout, artifactsOf(stored), artifactsOf(deleted), trace));
+            roots.addAll(applyP2Metadata(repository, layout, metadataOf(stored), metadataOf(deleted), trace));
 
-                // copy repository artifacts back to exposed location
-                FileUtils.copyFile(tempArtifacts, artifacts);
-            } finally {
-                p2RepoUid.getLock().unlock();
-                deleteDirectory(destinationP2Repository);
+            if (!roots.isEmpty()) {
+                trace.begin(Phase.LOCK_WAIT);
+                final Held held = locks.lock(repository, Domain.STATE);
+                try {
+                    trace.begin(Phase.MANIFEST);
+                    writeManifest(repository, getManifest(repository));
+                } finally {
+                    held.unlock();
+                }
+            }
+            if (layout.isComposite() && mayChangeComposite(repository, roots)) {
+                trace.begin(Phase.LOCK_WAIT);
+                final Held held = locks.lockAll(repository);
+                try {
+                    trace.begin(Phase.COMPOSITE);
+                    updateComposite(repository, roots);
+                } finally {
+                    held.unlock();
+                }
             }
         } catch (final Exception e) {
-            logger.warn(
-                    String.format("Could not update P2 repository [%s:%s] with [%s] due to [%s]",
-                            configuration.repositoryId(), P2_REPOSITORY_ROOT_PATH, item.getPath(), e.getMessage()), e);
+            trace.failed(e);
+            logger.warn(String.format("Could not update P2 repository [%s:%s] due to [%s]",
+                    configuration.repositoryId(), P2_REPOSITORY_ROOT_PATH, e.getMessage()), e);
+        } finally {
+            tracer.finish(trace);
         }
     }
 
-    @Override
-    public void updateP2Metadata(final StorageItem item) {
-        final P2TychoRepositoryAggregatorConfiguration configuration = getConfiguration(item.getRepositoryId());
-        if (configuration == null) {
-            return;
+    /**
+     * Applies deleted and stored p2artifacts.xml fragments, records them in the manifest and publishes the changed
+     * artifacts.xml files.
+     * @return roots of the p2 repositories that changed
+     */
+    private Set<String> applyP2Artifacts(final Repository repository, final P2RepositoryLayout layout,
+            final Collection<StorageItem> stored, final Collection<StorageItem> deleted,
+            final P2AggregationTrace trace) throws Exception {
+        final Set<String> changed = new TreeSet<String>();
+        if (stored.isEmpty() && deleted.isEmpty()) {
+            return changed;
         }
-        logger.debug("Updating P2 repository metadata (update) for [{}:{}]", item.getRepositoryId(), item.getPath());
+        final RepositoryMetrics repositoryMetrics = metrics.of(repository.getId());
+        trace.begin(Phase.LOCK_WAIT);
+        final Held held = locks.lock(repository, Domain.ARTIFACTS);
         try {
-            final Repository repository = repositories.getRepository(configuration.repositoryId());
-            final RepositoryItemUid p2RepoUid = repository.createUid(P2_REPOSITORY_ROOT_PATH);
-            File destinationP2Repository = null;
+            final P2FragmentManifest manifest = getManifest(repository);
+            final Held linksHeld = locks.lock(repository, Domain.LINKS);
             try {
-                p2RepoUid.getLock().lock(Action.update);
-
-                // copy repository content to a temporary location
-                destinationP2Repository = createTemporaryP2Repository();
-                final File content = getP2Content(configuration, repository);
-                final File tempContent = new File(destinationP2Repository, content.getName());
-                FileUtils.copyFile(content, tempContent);
-
-                updateP2Metadata(repository, retrieveFile(repository, item.getPath()), destinationP2Repository);
-
-                // copy repository content back to exposed location
-                FileUtils.copyFile(tempContent, content);
+                trace.begin(Phase.APPLY);
+                final P2LinkReconciler links = new P2LinkReconciler(repository, logger);
+                // removals first, so a fragment stored in the same batch wins over a deleted one
+                for (final StorageItem item : deleted) {
+                    final long start = System.nanoTime();
+                    try {
+                        logger.debug("Updating P2 repository artifacts (remove) for [{}:{}]", item.getRepositoryId(),
+                                item.getPath());
+                        final String root = layout.rootOf(item.getPath());
+                        final Collection<String> keys = applyDeleted(repository, manifest, item.getPath(),
+                                getArtifactsIndex(repository, root), new ArtifactDescriptorIndex());
+                        links.unwant(P2LinkReconciler.linksOf(root, item.getPath(), keys));
+                        changed.add(root);
+                        repositoryMetrics.succeeded(Operation.REMOVE_ARTIFACTS, start);
+                    } catch (final Exception e) {
+                        repositoryMetrics.failed(Operation.REMOVE_ARTIFACTS, start);
+                        trace.failed(e);
+                        logger.warn(String.format("Could not update P2 repository [%s:%s] with [%s] due to [%s]",
+                                repository.getId(), P2_REPOSITORY_ROOT_PATH, item.getPath(), e.getMessage()), e);
+                    }
+                }
+                for (final StorageItem item : stored) {
+                    final long start = System.nanoTime();
+                    try {
+                        logger.debug("Updating P2 repository artifacts (update) for [{}:{}]", item.getRepositoryId(),
+                                item.getPath());
+                        final String root = layout.rootOf(item.getPath());
+                        trace.begin(Phase.READ);
+                        final File file = retrieveFile(repository, item.getPath());
+                        final ArtifactDescriptorIndex fragment = readP2Artifacts(file);
+                        trace.begin(Phase.APPLY);
+                        final ArtifactDescriptorIndex index = getArtifactsIndex(repository, root);
+                        if (recordUnchanged(manifest, item.getPath(), root, file, index, fragment)) {
+                            logger.debug("P2 repository artifacts unchanged by [{}:{}]", item.getRepositoryId(),
+                                    item.getPath());
+                            repositoryMetrics.unchanged();
+                            repositoryMetrics.succeeded(Operation.UPDATE_ARTIFACTS, start);
+                            continue;
+                        }
+                        final Set<String> released = applyStored(manifest, item.getPath(), root, file, index,
+                                fragment);
+                        links.want(P2LinkReconciler.linksOf(root, item.getPath(), fragment.keys()));
+                        links.unwant(P2LinkReconciler.linksOf(root, item.getPath(), released));
+                        changed.add(root);
+                        repositoryMetrics.succeeded(Operation.UPDATE_ARTIFACTS, start);
+                    } catch (final Exception e) {
+                        repositoryMetrics.failed(Operation.UPDATE_ARTIFACTS, start);
+                        trace.failed(e);
+                        logger.warn(String.format("Could not update P2 repository [%s:%s] with [%s] due to [%s]",
+                                repository.getId(), P2_REPOSITORY_ROOT_PATH, item.getPath(), e.getMessage()), e);
+                    }
+                }
+                trace.begin(Phase.LINKS);
+                links.reconcile();
+                repositoryMetrics.linksReconciled(links.created(), links.deleted());
             } finally {
-                p2RepoUid.getLock().unlock();
-                deleteDirectory(destinationP2Repository);
+                linksHeld.unlock();
             }
-        } catch (final Exception e) {
-            logger.warn(
-                    String.format("Could not update P2 repository [%s:%s] with [%s] due to [%s]",
-                            configuration.repositoryId(), P2_REPOSITORY_ROOT_PATH, item.getPath(), e.getMessage()), e);
+            trace.begin(Phase.PUBLISH);
+            publish(repository, changed, Collections.<String> emptySet(), null);
+        } finally {
+            held.unlock();
         }
+        return changed;
     }
 
-    @Override
-    public void removeP2Metadata(final StorageItem item) {
-        final P2TychoRepositoryAggregatorConfiguration configuration = getConfiguration(item.getRepositoryId());
-        if (configuration == null) {
-            return;
+    /**
+     * Applies deleted and stored p2metadata.xml fragments, records them in the manifest and publishes the changed
+     * content.xml files.
+     * @return roots of the p2 repositories that changed
+     */
+    private Set<String> applyP2Metadata(final Repository repository, final P2RepositoryLayout layout,
+            final Collection<StorageItem> stored, final Collection<StorageItem> deleted,
+            final P2AggregationTrace trace) throws Exception {
+        final Set<String> changed = new TreeSet<String>();
+        if (stored.isEmpty() && deleted.isEmpty()) {
+            return changed;
         }
-        logger.debug("Updating P2 repository metadata (remove) for [{}:{}]", item.getRepositoryId(), item.getPath());
+        final RepositoryMetrics repositoryMetrics = metrics.of(repository.getId());
+        trace.begin(Phase.LOCK_WAIT);
+        final Held held = locks.lock(repository, Domain.CONTENT);
         try {
-            final Repository repository = repositories.getRepository(configuration.repositoryId());
-            final RepositoryItemUid p2RepoUid = repository.createUid(P2_REPOSITORY_ROOT_PATH);
-            File destinationP2Repository = null;
-            try {
-                p2RepoUid.getLock().lock(Action.update);
+            trace.begin(Phase.APPLY);
+            final P2FragmentManifest manifest = getManifest(repository);
+            // removals first, so a fragment stored in the same batch wins over a deleted one
+            for (final StorageItem item : deleted) {
+                final long start = System.nanoTime();
+                try {
+                    logger.debug("Updating P2 repository metadata (remove) for [{}:{}]", item.getRepositoryId(),
+                            item.getPath());
+                    final String root = layout.rootOf(item.getPath());
+                    applyDeleted(repository, manifest, item.getPath(), getContentIndex(repository, root),
+                            new InstallableUnitIndex());
+                    changed.add(root);
+                    repositoryMetrics.succeeded(Operation.REMOVE_METADATA, start);
+                } catch (final Exception e) {
+                    repositoryMetrics.failed(Operation.REMOVE_METADATA, start);
+                    trace.failed(e);
+                    logger.warn(String.format("Could not update P2 repository [%s:%s] with [%s] due to [%s]",
+                            repository.getId(), P2_REPOSITORY_ROOT_PATH, item.getPath(), e.getMessage()), e);
+                }
+            }
+            for (final StorageItem item : stored) {
+                final long start = System.nanoTime();
+                try {
+                    logger.debug("Updating P2 repository metadata (update) for [{}:{}]", item.getRepositoryId(),
+                            item.getPath());
+                    final String root = layout.rootOf(item.getPath());
+                    trace.begin(Phase.READ);
+                    final File file = retrieveFile(repository, item.getPath());
+                    final InstallableUnitIndex fragment = readP2Metadata(file);
+                    trace.begin(Phase.APPLY);
+                    final InstallableUnitIndex index = getContentIndex(repository, root);
+                    if (recordUnchanged(manifest, item.getPath(), root, file, index, fragment)) {
+                        logger.debug("P2 repository metadata unchanged by [{}:{}]", item.getRepositoryId(),
+                                item.getPath());
+                        repositoryMetrics.unchanged();
+                        repositoryMetrics.succeeded(Operation.UPDATE_METADATA, start);
+                        continue;
+                    }
+                    applyStored(manifest, item.getPath(), root, file, index, fragment);
+                    changed.add(root);
+                    repositoryMetrics.succeeded(Operation.UPDATE_METADATA, start);
+                } catch (final Exception e) {
+                    repositoryMetrics.failed(Operation.UPDATE_METADATA, start);
+                    trace.failed(e);
+                    logger.warn(String.format("Could not update P2 repository [%s:%s] with [%s] due to [%s]",
+                            repository.getId(), P2_REPOSITORY_ROOT_PATH, item.getPath(), e.getMessage()), e);
+                }
+            }
+            trace.begin(Phase.PUBLISH);
+            publish(repository, Collections.<String> emptySet(), changed, null);
+        } finally {
+            held.unlock();
+        }
+        return changed;
+    }
 
-                // copy repository content to a temporary location
-                destinationP2Repository = createTemporaryP2Repository();
-                final File content = getP2Content(configuration, repository);
-                final File tempContent = new File(destinationP2Repository, content.getName());
-                FileUtils.copyFile(content, tempContent);
+    /**
+     * Applies a stored fragment to given index and records it, taking back what an earlier version of it contributed
+     * but the new one does not.
+     * @return keys of the entries no fragment contributes any more
+     */
+    private Set<String> applyStored(final P2FragmentManifest manifest, final String path, final String root,
+            final File file, final P2RepositoryIndex index, final P2RepositoryIndex fragment) throws IOException {
+        // described first, the fragment may be gone already and must not be applied without being recorded
+        final P2FragmentManifest.Entry entry = P2FragmentManifest.describe(file);
+        index.putAll(fragment);
+        final Set<String> released = manifest.put(path, entry.contributing(root, fragment.keys()));
+        index.removeKeys(released);
+        return released;
+    }
 
-                removeP2Metadata(repository, retrieveFile(repository, item.getPath()), destinationP2Repository);
+    /**
+     * Records a stored fragment without applying it if that would not change given index: its recorded version
+     * contributed the same entries to the same p2 repository, and they are aggregated with the same canonical content
+     * (volatile properties aside). Neither the p2 repository nor its links need to be written then.
+     * @return false if the fragment has to be applied
+     */
+    private boolean recordUnchanged(final P2FragmentManifest manifest, final String path, final String root,
+            final File file, final P2RepositoryIndex index, final P2RepositoryIndex fragment) throws IOException {
+        final P2FragmentManifest.Entry recorded = manifest.get(path);
+        if (recorded == null || recorded.keys == null || !root.equals(recorded.root)
+                || !new HashSet<String>(recorded.keys).equals(new HashSet<String>(fragment.keys()))
+                || !index.containsAll(fragment)) {
+            return false;
+        }
+        // the new size, modification time and digest stay in memory until the manifest gets written next
+        manifest.put(path, P2FragmentManifest.describe(file).contributing(root, fragment.keys()));
+        return true;
+    }
 
-                // copy repository content back to exposed location
-                FileUtils.copyFile(tempContent, content);
-            } finally {
-                p2RepoUid.getLock().unlock();
-                deleteDirectory(destinationP2Repository);
+    /**
+     * Takes back what a deleted fragment contributed to given index, as recorded in the manifest. Fragments recorded
+     * without their contributions (by an earlier version) are read again, if they are still there.
+     * @param reader empty index to read the fragment with
+     * @return keys of the entries the fragment contributed
+     */
+    private Collection<String> applyDeleted(final Repository repository, final P2FragmentManifest manifest,
+            final String path, final P2RepositoryIndex index, final P2RepositoryIndex reader) throws IOException {
+        final P2FragmentManifest.Entry recorded = manifest.get(path);
+        if (recorded != null && recorded.keys != null) {
+            index.removeKeys(manifest.remove(path));
+            return recorded.keys;
+        }
+        reader.loadFragment(retrieveFile(repository, path));
+        index.removeKeys(reader.keys());
+        manifest.remove(path);
+        return reader.keys();
+    }
+
+    private static List<StorageItem> artifactsOf(final Collection<StorageItem> items) {
+        final List<StorageItem> artifacts = new ArrayList<StorageItem>();
+        for (final StorageItem item : items) {
+            if (isP2ArtifactsXML(item.getPath())) {
+                artifacts.add(item);
             }
-        } catch (final Exception e) {
-            logger.warn(
-                    String.format("Could not update P2 repository [%s:%s] with [%s] due to [%s]",
-                            configuration.repositoryId(), P2_REPOSITORY_ROOT_PATH, item.getPath(), e.getMessage()), e);
         }
+        return artifacts;
+    }
+
+    private static List<StorageItem> metadataOf(final Collection<StorageItem> items) {
+        final List<StorageItem> metadata = new ArrayList<StorageItem>();
+        for (final StorageItem item : items) {
+            if (isP2ContentXML(item.getPath())) {
+                metadata.add(item);
+            }
+        }
+        return metadata;
     }
 
     @Override
     public void scanAndRebuild(final String repositoryId) {
-        logger.debug("Rebuilding P2 repository for repository [{}]", repositoryId);
+        scanAndRebuild(repositoryId, false);
+    }
+
+    @Override
+    public void scanAndRebuild(final String repositoryId, final boolean forceFull) {
+        scanAndRebuild(repositoryId, null, forceFull, null);
+    }
+
+    @Override
+    public void scanAndRebuild(final String repositoryId, final String resourceStorePath, final boolean forceFull,
+            final ProgressListener progress) {
+        logger.debug("Rebuilding P2 repository for repository [{}] from [{}]", repositoryId,
+                resourceStorePath == null ? "/" : resourceStorePath);
 
         final P2TychoRepositoryAggregatorConfiguration configuration = getConfiguration(repositoryId);
         if (configuration == null) {
@@ -306,350 +542,1201 @@ public class DefaultP2TychoRepositoryAggregator implements P2TychoRepositoryAggr
             return;
         }
 
+        // fragment events arriving from now on are replayed onto the rebuilt p2 repository
+        final RebuildJournal journal = new RebuildJournal();
+        if (journals.putIfAbsent(repositoryId, journal) != null) {
+            logger.info("Rebuilding P2 repository for repository [{}] skipped as it is already being rebuilt",
+                    repositoryId);
+            return;
+        }
+        final RepositoryMetrics repositoryMetrics = metrics.of(repositoryId);
+        final long start = System.nanoTime();
+        final P2AggregationTrace trace = tracer.start(repositoryId, forceFull ? "full rebuild" : "rebuild",
+                "from " + (resourceStorePath == null ? "/" : resourceStorePath));
         try {
             final Repository repository = repositories.getRepository(repositoryId);
+            final P2RepositoryLayout layout = P2RepositoryLayout.of(configuration);
             final File scanPath = localStorageOfRepositoryAsFile(repository);
-            final RepositoryItemUid p2RepoUid = repository.createUid(P2_REPOSITORY_ROOT_PATH);
-            final File destinationP2Repository = createTemporaryP2Repository();
+            final ExecutorService executor = Executors.newFixedThreadPool(
+                    Integer.getInteger(REBUILD_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()),
+                    new ThreadFactoryBuilder().setNameFormat("p2-tycho-rebuild-" + repositoryId + "-%d")
+                            .setDaemon(true).build());
             try {
-                p2RepoUid.getLock().lock(Action.update);
-
-                // copy repository artifacts to a temporary location
-                final File artifacts = getP2Artifacts(configuration, repository);
-                final File tempArtifacts = new File(destinationP2Repository, artifacts.getName());
-                FileUtils.copyFile(artifacts, tempArtifacts);
+                final P2FragmentManifest manifest = getManifest(repository);
+                String subtree = subtreeOf(resourceStorePath);
+                if (subtree != null
+                        && (!manifest.isPersisted() || !manifest.hasContributions(manifest.paths(subtree)))) {
+                    // what the fragments below contributed is not recorded, so it cannot be replaced
+                    logger.info("Rebuilding P2 repository for repository [{}] fully instead of below [{}] as the "
+                            + "contributions of its fragments are not recorded", repositoryId, subtree);
+                    subtree = null;
+                }
 
-                // copy repository content to a temporary location
-                final File content = getP2Content(configuration, repository);
-                final File tempContent = new File(destinationP2Repository, content.getName());
-                FileUtils.copyFile(content, tempContent);
+                // scan, parse and merge without holding any lock
+                trace.begin(Phase.SCAN);
+                final Map<String, File> fragments = new P2FragmentScanner(executor, progress).scan(scanPath,
+                        subtree);
+                checkCanceled(progress);
+
+                // decide what has to be (re)applied
+                boolean full = subtree == null && (forceFull || !manifest.isPersisted());
+                Collection<String> paths = fragments.keySet();
+                Collection<String> removed = Collections.emptyList();
+                if (subtree != null) {
+                    // all fragments below are applied again, replacing what they contributed
+                    removed = manifest.diff(fragments, subtree).removed;
+                } else if (!full) {
+                    final P2FragmentManifest.Diff diff = manifest.diff(fragments);
+                    if (diff.isEmpty()) {
+                        logger.debug("Rebuilding P2 repository for repository [{}] skipped as [{}] fragments are "
+                                + "unchanged", repositoryId, fragments.size());
+                        trace.begin(Phase.LOCK_WAIT);
+                        final Held held = locks.lock(repository, Domain.STATE);
+                        try {
+                            trace.begin(Phase.MANIFEST);
+                            writeManifest(repository, manifest);
+                        } finally {
+                            held.unlock();
+                        }
+                        repositoryMetrics.succeeded(Operation.REBUILD, start);
+                        return;
+                    }
+                    if (!manifest.hasContributions(diff.removed) || !manifest.hasContributions(diff.changed)) {
+                        // what a removed or changed fragment contributed is not recorded, so start over
+                        logger.debug("Rebuilding P2 repository for repository [{}] fully as [{}] fragments were "
+                                + "removed and [{}] changed",
+                                new Object[] { repositoryId, diff.removed.size(), diff.changed.size() });
+                        full = true;
+                    } else {
+                        paths = diff.addedOrChanged();
+                        removed = diff.removed;
+                    }
+                }
+                logger.debug("Rebuilding P2 repository for repository [{}] from [{}] of [{}] fragments", new Object[] {
+                        repositoryId, paths.size(), fragments.size() });
+
+                // parse fragments concurrently
+                trace.begin(Phase.READ);
+                final List<Future<ParsedFragment>> parsed = new ArrayList<Future<ParsedFragment>>();
+                for (final String path : paths) {
+                    final File fragment = fragments.get(path);
+                    final String root = layout.rootOf(path);
+                    parsed.add(executor.submit(new Callable<ParsedFragment>() {
+
+                        @Override
+                        public ParsedFragment call() throws Exception {
+                            checkCanceled(progress);
+                            final P2FragmentManifest.Entry entry = P2FragmentManifest.describe(fragment);
+                            if (isP2ArtifactsXML(fragment.getPath())) {
+                                return new ParsedFragment(path, root, entry, readP2Artifacts(fragment));
+                            }
+                            return new ParsedFragment(path, root, entry, readP2Metadata(fragment));
+                        }
+                    }));
+                }
+                final List<ParsedFragment> parsedFragments = new ArrayList<ParsedFragment>();
+                for (final Future<ParsedFragment> future : parsed) {
+                    parsedFragments.add(await(future));
+                }
 
-                new SerialScanner().scan(scanPath, new ListenerSupport() {
+                final Map<String, ArtifactDescriptorIndex> artifacts = new HashMap<String, ArtifactDescriptorIndex>();
+                final Map<String, InstallableUnitIndex> units = new HashMap<String, InstallableUnitIndex>();
+                final P2FragmentManifest applied;
+                trace.begin(Phase.APPLY);
+                if (full) {
+                    // merge everything into shadow p2 repositories, the live ones keep taking events meanwhile
+                    applied = new P2FragmentManifest();
+                    for (final ParsedFragment fragment : parsedFragments) {
+                        applyToShadow(artifacts, units, applied, fragment.path, fragment.root, fragment.entry,
+                                fragment.index);
+                    }
+                } else {
+                    // apply onto shadows of the p2 repositories concerned, loaded from their exposed documents
+                    applied = manifest.copy();
+                    for (final String path : removed) {
+                        final P2FragmentManifest.Entry recorded = applied.get(path);
+                        if (recorded != null) {
+                            final Set<String> released = applied.remove(path);
+                            shadowOf(repository, artifacts, units, path, recorded.root).removeKeys(released);
+                        }
+                    }
+                    for (final ParsedFragment fragment : parsedFragments) {
+                        final Set<String> released = applied.put(fragment.path,
+                                fragment.entry.contributing(fragment.root, fragment.index.keys()));
+                        final P2RepositoryIndex index = shadowOf(repository, artifacts, units, fragment.path,
+                                fragment.root);
+                        index.putAll(fragment.index);
+                        index.removeKeys(released);
+                    }
+                }
+                prepareShadow(repository, layout, artifacts, units, full, trace);
+
+                // create the links the result needs, unwanted ones are deleted once it is swapped in
+                trace.begin(Phase.LINKS);
+                final P2LinkReconciler prepared = new P2LinkReconciler(repository, logger);
+                if (full) {
+                    for (final Map.Entry<String, P2FragmentManifest.Entry> entry : applied.entries().entrySet()) {
+                        if (isP2ArtifactsXML(entry.getKey())) {
+                            prepared.want(P2LinkReconciler.linksOf(entry.getValue().root, entry.getKey(),
+                                    entry.getValue().keys));
+                        }
+                    }
+                } else {
+                    for (final ParsedFragment fragment : parsedFragments) {
+                        if (fragment.index instanceof ArtifactDescriptorIndex) {
+                            prepared.want(P2LinkReconciler.linksOf(fragment.root, fragment.path,
+                                    fragment.index.keys()));
+                        }
+                    }
+                }
+                prepared.reconcile();
+                repositoryMetrics.linksReconciled(prepared.created(), prepared.deleted());
 
-                    @Override
-                    public void onFile(final File file) {
-                        try {
-                            if (!isHidden(getRelativePath(scanPath, file))) {
-                                if (isP2ArtifactsXML(file.getPath())) {
-                                    updateP2Artifacts(repository, file, destinationP2Repository);
-                                } else if (isP2ContentXML(file.getPath())) {
-                                    updateP2Metadata(repository, file, destinationP2Repository);
+                // write the shadows with their compressed forms, so holding the locks they only need to be renamed
+                trace.begin(Phase.PUBLISH);
+                final Map<String, Publication> stagedArtifacts = new HashMap<String, Publication>();
+                final Map<String, Publication> stagedUnits = new HashMap<String, Publication>();
+                try {
+                    stage(repository, artifacts, stagedArtifacts, executor);
+                    stage(repository, units, stagedUnits, executor);
+                    // last chance to stop, from here on the result is applied
+                    checkCanceled(progress);
+
+                    // replay what happened meanwhile and swap in the result, holding all locks
+                    trace.begin(Phase.LOCK_WAIT);
+                    final Held held = locks.lockAll(repository);
+                    try {
+                        trace.begin(Phase.REPLAY);
+                        journals.remove(repositoryId, journal);
+                        final Map<String, Boolean> events = journal.events();
+                        final Set<String> artifactsTouched = new HashSet<String>();
+                        final Set<String> unitsTouched = new HashSet<String>();
+                        collectTouched(layout, events, Arrays.asList(applied, manifest), artifactsTouched,
+                                unitsTouched);
+                        final P2LinkReconciler links = new P2LinkReconciler(repository, logger);
+                        final Set<String> roots = new TreeSet<String>();
+                        if (full) {
+                            replayOnShadow(repository, layout, artifacts, units, applied, events);
+                            trace.begin(Phase.PUBLISH);
+                            swapShadow(repository, artifacts, stagedArtifacts, artifactsTouched);
+                            swapShadow(repository, units, stagedUnits, unitsTouched);
+                            manifests.put(repositoryId, applied);
+                            for (final String root : artifacts.keySet()) {
+                                links.prune(root);
+                            }
+                            for (final String root : units.keySet()) {
+                                links.prune(root);
+                            }
+                            // links of fragments replayed meanwhile may have been changed since they were created
+                            for (final Map.Entry<String, P2FragmentManifest.Entry> entry : applied.entries()
+                                    .entrySet()) {
+                                if (isP2ArtifactsXML(entry.getKey())) {
+                                    final Map<String, String> wanted = P2LinkReconciler.linksOf(
+                                            entry.getValue().root, entry.getKey(), entry.getValue().keys);
+                                    if (events.containsKey(entry.getKey())) {
+                                        links.want(wanted);
+                                    } else {
+                                        links.keep(wanted);
+                                    }
                                 }
                             }
-                        } catch (final Exception e) {
-                            throw new RuntimeException(e);
+                        } else {
+                            // shadows touched meanwhile are given up, their fragments are applied to the live ones
+                            final Set<String> artifactsCurrent = current(repository, stagedArtifacts,
+                                    artifactsTouched);
+                            final Set<String> unitsCurrent = current(repository, stagedUnits, unitsTouched);
+                            final Set<String> artifactsApplied = new TreeSet<String>();
+                            final Set<String> unitsApplied = new TreeSet<String>();
+                            // fragments touched by events meanwhile were already applied, with newer content
+                            for (final String path : removed) {
+                                final P2FragmentManifest.Entry recorded = manifest.get(path);
+                                // a batch that started before this rebuild may have taken it back already
+                                if (recorded == null || events.containsKey(path)) {
+                                    continue;
+                                }
+                                final Set<String> released = manifest.remove(path);
+                                if (isP2ArtifactsXML(path)) {
+                                    if (!artifactsCurrent.contains(recorded.root)) {
+                                        getArtifactsIndex(repository, recorded.root).removeKeys(released);
+                                        artifactsApplied.add(recorded.root);
+                                    }
+                                    links.unwant(P2LinkReconciler.linksOf(recorded.root, path, recorded.keys));
+                                } else if (!unitsCurrent.contains(recorded.root)) {
+                                    getContentIndex(repository, recorded.root).removeKeys(released);
+                                    unitsApplied.add(recorded.root);
+                                }
+                            }
+                            for (final ParsedFragment fragment : parsedFragments) {
+                                if (events.containsKey(fragment.path)) {
+                                    continue;
+                                }
+                                final Set<String> released = manifest.put(fragment.path,
+                                        fragment.entry.contributing(fragment.root, fragment.index.keys()));
+                                if (fragment.index instanceof ArtifactDescriptorIndex) {
+                                    if (!artifactsCurrent.contains(fragment.root)) {
+                                        final P2RepositoryIndex index = getArtifactsIndex(repository, fragment.root);
+                                        index.putAll(fragment.index);
+                                        index.removeKeys(released);
+                                        artifactsApplied.add(fragment.root);
+                                    }
+                                    links.unwant(P2LinkReconciler.linksOf(fragment.root, fragment.path, released));
+                                } else if (!unitsCurrent.contains(fragment.root)) {
+                                    final P2RepositoryIndex index = getContentIndex(repository, fragment.root);
+                                    index.putAll(fragment.index);
+                                    index.removeKeys(released);
+                                    unitsApplied.add(fragment.root);
+                                }
+                            }
+                            trace.begin(Phase.PUBLISH);
+                            for (final String root : artifactsCurrent) {
+                                expose(repository, stagedArtifacts.get(root));
+                                artifactsIndexes.put(indexKey(repository, root), artifacts.get(root));
+                            }
+                            for (final String root : unitsCurrent) {
+                                expose(repository, stagedUnits.get(root));
+                                contentIndexes.put(indexKey(repository, root), units.get(root));
+                            }
+                            publish(repository, artifactsApplied, unitsApplied, executor);
+                            roots.addAll(artifactsApplied);
+                            roots.addAll(unitsApplied);
                         }
-                    }
 
-                });
+                        trace.begin(Phase.LINKS);
+                        links.reconcile();
+                        repositoryMetrics.linksReconciled(links.created(), links.deleted());
+                        if (layout.isComposite()) {
+                            trace.begin(Phase.COMPOSITE);
+                            roots.addAll(artifacts.keySet());
+                            roots.addAll(units.keySet());
+                            updateComposite(repository, roots);
+                        }
+                    } finally {
+                        held.unlock();
+                    }
+                } finally {
+                    for (final Publication publication : stagedArtifacts.values()) {
+                        publication.discard();
+                    }
+                    for (final Publication publication : stagedUnits.values()) {
+                        publication.discard();
+                    }
+                }
 
-                // copy artifacts back to exposed location
-                FileUtils.copyFile(tempArtifacts, artifacts);
-                // copy content back to exposed location
-                FileUtils.copyFile(tempContent, content);
+                // the manifest is written like after any batch, it holds the events applied since as well
+                trace.begin(Phase.LOCK_WAIT);
+                final Held held = locks.lock(repository, Domain.STATE);
+                try {
+                    trace.begin(Phase.MANIFEST);
+                    writeManifest(repository, getManifest(repository));
+                } finally {
+                    held.unlock();
+                }
+                repositoryMetrics.succeeded(Operation.REBUILD, start);
             } finally {
-                p2RepoUid.getLock().unlock();
-
-                deleteDirectory(destinationP2Repository);
+                executor.shutdownNow();
             }
+        } catch (final CancellationException e) {
+            trace.failed(e);
+            logger.info("Rebuilding P2 repository for repository [{}] canceled", repositoryId);
         } catch (final Exception e) {
+            trace.failed(e);
+            repositoryMetrics.failed(Operation.REBUILD, start);
             logger.warn(String.format(
                     "Rebuilding P2 repository not executed as repository [%s] could not be scanned due to [%s]",
                     repositoryId, e.getMessage()), e);
+        } finally {
+            journals.remove(repositoryId, journal);
+            tracer.finish(trace);
         }
     }
 
-    @Override
-    public void scanAndRebuild() {
-        for (final Repository repository : repositories.getRepositories()) {
-            scanAndRebuild(repository.getId());
+    private static void checkCanceled(final ProgressListener progress) {
+        if (progress != null && progress.isCanceled()) {
+            throw new CancellationException();
         }
     }
 
-    private void updateP2Artifacts(final Repository repository, final File sourceArtifacts,
-            final File destinationP2Repository) throws Exception {
-        logger.debug("Updating p2 artifacts for " + sourceArtifacts.getName());
-        processP2Artifacts(repository, sourceArtifacts, destinationP2Repository, new P2MetadataProcessor() {
+    /**
+     * @return the result of given future, rethrowing a cancellation as such
+     */
+    private static <T> T await(final Future<T> future) throws InterruptedException, ExecutionException {
+        try {
+            return future.get();
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof CancellationException) {
+                throw (CancellationException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return given repository path without trailing slash, null if it denotes the whole repository
+     */
+    private static String subtreeOf(final String resourceStorePath) {
+        if (resourceStorePath == null) {
+            return null;
+        }
+        String subtree = resourceStorePath.trim().replace('\\', '/');
+        while (subtree.endsWith("/")) {
+            subtree = subtree.substring(0, subtree.length() - 1);
+        }
+        if (subtree.length() == 0) {
+            return null;
+        }
+        return subtree.startsWith("/") ? subtree : "/" + subtree;
+    }
+
+    /**
+     * Merges a parsed fragment into the shadow p2 repositories of a full rebuild.
+     */
+    private static void applyToShadow(final Map<String, ArtifactDescriptorIndex> artifacts,
+            final Map<String, InstallableUnitIndex> units, final P2FragmentManifest shadow, final String path,
+            final String root, final P2FragmentManifest.Entry entry, final P2RepositoryIndex fragment) {
+        final P2RepositoryIndex index;
+        if (fragment instanceof ArtifactDescriptorIndex) {
+            index = rebuiltIndex(artifacts, root, new ArtifactDescriptorIndex());
+        } else {
+            index = rebuiltIndex(units, root, new InstallableUnitIndex());
+        }
+        index.putAll(fragment);
+        index.removeKeys(shadow.put(path, entry.contributing(root, fragment.keys())));
+    }
 
-            @Override
-            public void processMetadata(final File sourceP2Repository, final File destinationP2Repository) {
-                artifactRepository.merge(sourceP2Repository.toURI(), destinationP2Repository.toURI());
+    /**
+     * Replays fragment events that arrived during a full rebuild onto its shadow p2 repositories. Callers must hold all
+     * locks.
+     * @param events repository path of fragment -> true if it was deleted
+     */
+    private void replayOnShadow(final Repository repository, final P2RepositoryLayout layout,
+            final Map<String, ArtifactDescriptorIndex> artifacts, final Map<String, InstallableUnitIndex> units,
+            final P2FragmentManifest shadow, final Map<String, Boolean> events) {
+        for (final Map.Entry<String, Boolean> event : events.entrySet()) {
+            final String path = event.getKey();
+            try {
+                final File file = safeRetrieveFile(repository, path);
+                if (!event.getValue() && file != null && file.isFile()) {
+                    final P2RepositoryIndex fragment = isP2ArtifactsXML(path) ? readP2Artifacts(file)
+                            : readP2Metadata(file);
+                    applyToShadow(artifacts, units, shadow, path, layout.rootOf(path),
+                            P2FragmentManifest.describe(file), fragment);
+                } else {
+                    final P2FragmentManifest.Entry recorded = shadow.get(path);
+                    if (recorded != null) {
+                        final Set<String> released = shadow.remove(path);
+                        if (isP2ArtifactsXML(path)) {
+                            rebuiltIndex(artifacts, recorded.root, new ArtifactDescriptorIndex()).removeKeys(released);
+                        } else {
+                            rebuiltIndex(units, recorded.root, new InstallableUnitIndex()).removeKeys(released);
+                        }
+                    }
+                }
+            } catch (final Exception e) {
+                logger.warn(String.format("Could not replay [%s] onto rebuilt P2 repository [%s:%s] due to [%s]",
+                        path, repository.getId(), P2_REPOSITORY_ROOT_PATH, e.getMessage()), e);
             }
-        }, new InstallableArtifactsHandler() {
+        }
+        logger.debug("Replayed [{}] fragment events onto rebuilt P2 repository [{}]", events.size(),
+                repository.getId());
+    }
 
-            @Override
-            public void handleArtifact(final Repository repository, final StorageItem bundle, final String link)
-                    throws Exception {
-                NexusUtils.createLink(repository, bundle, link);
+    /**
+     * @return the shadow of the p2 repository at given root an incremental rebuild applies the fragment at given path
+     *         to, loaded from its exposed document on first access
+     */
+    private P2RepositoryIndex shadowOf(final Repository repository,
+            final Map<String, ArtifactDescriptorIndex> artifacts, final Map<String, InstallableUnitIndex> units,
+            final String path, final String root) throws Exception {
+        if (isP2ArtifactsXML(path)) {
+            if (!artifacts.containsKey(root)) {
+                artifacts.put(root,
+                        load(repository, root, new ArtifactDescriptorIndex(), getP2Artifacts(repository, root)));
             }
-        });
+            return artifacts.get(root);
+        }
+        if (!units.containsKey(root)) {
+            units.put(root, load(repository, root, new InstallableUnitIndex(), getP2Content(repository, root)));
+        }
+        return units.get(root);
     }
 
-    private void removeP2Artifacts(final Repository repository, final File sourceArtifacts,
-            final File destinationP2Repository) throws Exception {
-        logger.debug("Removing p2 artifacts for " + sourceArtifacts.getName());
-        processP2Artifacts(repository, sourceArtifacts, destinationP2Repository, new P2MetadataProcessor() {
+    /**
+     * Prepares the shadow p2 repositories of a rebuild for being staged, holding the artifacts and the content lock
+     * only briefly: the live indexes they replace get loaded, so they can be compared once all locks are held for the
+     * swap. A full rebuild also gets empty shadows for the p2 repositories that no longer aggregate anything, and its
+     * shadows take over the headers of the live ones.
+     */
+    private void prepareShadow(final Repository repository, final P2RepositoryLayout layout,
+            final Map<String, ArtifactDescriptorIndex> artifacts, final Map<String, InstallableUnitIndex> units,
+            final boolean full, final P2AggregationTrace trace) throws Exception {
+        if (full) {
+            final Set<String> roots = new TreeSet<String>(artifacts.keySet());
+            roots.addAll(units.keySet());
+            if (layout.isComposite()) {
+                trace.begin(Phase.LOCK_WAIT);
+                final Held held = locks.lock(repository, Domain.STATE);
+                try {
+                    trace.begin(Phase.APPLY);
+                    for (final String location : getCompositeIndex(repository).children()) {
+                        roots.add(P2RepositoryLayout.childRoot(location));
+                    }
+                } finally {
+                    held.unlock();
+                }
+            } else {
+                roots.add(P2_REPOSITORY_ROOT_PATH);
+            }
+            for (final String root : roots) {
+                rebuiltIndex(artifacts, root, new ArtifactDescriptorIndex());
+                rebuiltIndex(units, root, new InstallableUnitIndex());
+            }
+        }
+        trace.begin(Phase.LOCK_WAIT);
+        Held held = locks.lock(repository, Domain.ARTIFACTS);
+        try {
+            trace.begin(Phase.APPLY);
+            for (final Map.Entry<String, ArtifactDescriptorIndex> shadow : artifacts.entrySet()) {
+                final ArtifactDescriptorIndex live = getArtifactsIndex(repository, shadow.getKey());
+                if (full) {
+                    shadow.getValue().copyHeader(live);
+                }
+            }
+        } finally {
+            held.unlock();
+        }
+        trace.begin(Phase.LOCK_WAIT);
+        held = locks.lock(repository, Domain.CONTENT);
+        try {
+            trace.begin(Phase.APPLY);
+            for (final Map.Entry<String, InstallableUnitIndex> shadow : units.entrySet()) {
+                final InstallableUnitIndex live = getContentIndex(repository, shadow.getKey());
+                if (full) {
+                    shadow.getValue().copyHeader(live);
+                }
+            }
+        } finally {
+            held.unlock();
+        }
+    }
 
-            @Override
-            public void processMetadata(final File sourceP2Repository, final File destinationP2Repository) {
-                artifactRepository.remove(sourceP2Repository.toURI(), destinationP2Repository.toURI());
+    /**
+     * Stages the shadows (of one kind) of a rebuild, in parallel on given executor and without holding any lock.
+     * @param staged receives the publications by root, including those staged before one of them failed
+     */
+    private void stage(final Repository repository, final Map<String, ? extends P2RepositoryIndex> shadows,
+            final Map<String, Publication> staged, final ExecutorService executor) throws Exception {
+        final Map<String, Future<Publication>> futures = new LinkedHashMap<String, Future<Publication>>();
+        for (final Map.Entry<String, ? extends P2RepositoryIndex> shadow : shadows.entrySet()) {
+            futures.put(shadow.getKey(), executor.submit(new Callable<Publication>() {
+
+                @Override
+                public Publication call() throws Exception {
+                    return stage(repository, shadow.getKey(), shadow.getValue(),
+                            exposedOf(repository, shadow.getKey(), shadow.getValue()), REBUILD_STAGE);
+                }
+            }));
+        }
+        Exception failure = null;
+        for (final Map.Entry<String, Future<Publication>> future : futures.entrySet()) {
+            try {
+                staged.put(future.getKey(), await(future.getValue()));
+            } catch (final Exception e) {
+                if (failure == null) {
+                    failure = e;
+                }
             }
-        }, new InstallableArtifactsHandler() {
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
 
-            @Override
-            public void handleArtifact(final Repository repository, final StorageItem bundle, final String link)
-                    throws Exception {
-                NexusUtils.deleteLink(repository, bundle, link);
+    /**
+     * Collects the roots of the p2 repositories given fragment events may have changed, as the fragments are laid out
+     * now and as they are recorded in given manifests.
+     */
+    private static void collectTouched(final P2RepositoryLayout layout, final Map<String, Boolean> events,
+            final Collection<P2FragmentManifest> recordedIn, final Set<String> artifactsTouched,
+            final Set<String> unitsTouched) {
+        for (final String path : events.keySet()) {
+            final Set<String> touched = isP2ArtifactsXML(path) ? artifactsTouched : unitsTouched;
+            touched.add(layout.rootOf(path));
+            for (final P2FragmentManifest manifest : recordedIn) {
+                final P2FragmentManifest.Entry recorded = manifest.get(path);
+                if (recorded != null && recorded.root != null) {
+                    touched.add(recorded.root);
+                }
             }
-        });
+        }
     }
 
-    private void processP2Artifacts(final Repository repository, final File sourceArtifacts,
-            final File destinationP2Repository, final P2MetadataProcessor processor,
-            final InstallableArtifactsHandler artifactHandler) throws IOException, FileNotFoundException {
-        final File sourceP2Repository = createTemporaryP2Repository();
-        List<String> lines = readLinesFromFile(sourceArtifacts);
-        try {
-            File fileToMerge = sourceArtifacts;
-            // if there is no proper repository header (like from Tycho builds), we're adding one
-            if (!hasArtifactsRepositoryHeader(lines)) {
-                fileToMerge = fixArtifactsRepositoryHeader(sourceP2Repository, lines);
+    /**
+     * @return roots of the staged publications that can still be exposed as they are, as their p2 repository was not
+     *         touched by fragment events and its live document was not published again since the shadow was based on
+     *         it. Callers must hold all locks.
+     */
+    private Set<String> current(final Repository repository, final Map<String, Publication> staged,
+            final Set<String> touched) throws Exception {
+        final Set<String> current = new TreeSet<String>();
+        for (final Publication publication : staged.values()) {
+            final P2RepositoryIndex live = liveIndex(repository, publication.root, publication.index);
+            if (!touched.contains(publication.root)
+                    && Objects.equal(publication.base, live.getProperty(P2PublishStage.P2_GENERATION))) {
+                current.add(publication.root);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Makes the shadows (of one kind) of a full rebuild the live p2 repositories. Their staged publications are exposed
+     * if they are still current, shadows changed by the replay or whose live document was published again meanwhile
+     * are published again, with the header of the live one. Callers must hold all locks.
+     */
+    private void swapShadow(final Repository repository, final Map<String, ? extends P2RepositoryIndex> shadows,
+            final Map<String, Publication> staged, final Set<String> touched) throws Exception {
+        final Set<String> current = current(repository, staged, touched);
+        for (final Map.Entry<String, ? extends P2RepositoryIndex> shadow : shadows.entrySet()) {
+            final String root = shadow.getKey();
+            final P2RepositoryIndex index = shadow.getValue();
+            if (current.contains(root)) {
+                expose(repository, staged.get(root));
+            } else {
+                index.copyHeader(liveIndex(repository, root, index));
+                publish(repository, root, index, exposedOf(repository, root, index));
+            }
+            if (index instanceof ArtifactDescriptorIndex) {
+                artifactsIndexes.put(indexKey(repository, root), (ArtifactDescriptorIndex) index);
+            } else {
+                contentIndexes.put(indexKey(repository, root), (InstallableUnitIndex) index);
             }
+        }
+    }
+
+    @Override
+    public void scanAndRebuild() {
+        scanAndRebuild(false);
+    }
 
-            // copy content to a temp location
-            FileUtils.copyFile(fileToMerge, new File(sourceP2Repository, ARTIFACTS_XML));
-            processor.processMetadata(sourceP2Repository, destinationP2Repository);
+    @Override
+    public void scanAndRebuild(final boolean forceFull) {
+        scanAndRebuild(forceFull, null);
+    }
 
-            // handle deployed artifacts
-            handleArtifacts(repository, sourceArtifacts, sourceP2Repository, artifactHandler);
-        } catch (Exception e) {
-            logger.debug("Updating p2 Artifacts failed: " + e.getMessage());
+    @Override
+    public void scanAndRebuild(final boolean forceFull, final ProgressListener progress) {
+        final Collection<String> repositoryIds = routingTable.repositoryIds();
+        if (repositoryIds.isEmpty()) {
+            return;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(repositoryIds.size(),
+                        Integer.getInteger(REBUILD_REPOSITORIES_PROPERTY, DEFAULT_REBUILD_REPOSITORIES))),
+                new ThreadFactoryBuilder().setNameFormat("p2-tycho-rebuild-all-%d").setDaemon(true).build());
+        try {
+            final List<Future<?>> rebuilds = new ArrayList<Future<?>>();
+            for (final String repositoryId : repositoryIds) {
+                rebuilds.add(executor.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (progress == null || !progress.isCanceled()) {
+                            scanAndRebuild(repositoryId, null, forceFull, progress);
+                        }
+                    }
+                }));
+            }
+            for (final Future<?> rebuild : rebuilds) {
+                rebuild.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            logger.warn(String.format("Rebuilding P2 repositories failed due to [%s]", e.getCause().getMessage()),
+                    e.getCause());
         } finally {
-            deleteDirectory(sourceP2Repository);
+            executor.shutdownNow();
         }
     }
 
-    private boolean hasArtifactsRepositoryHeader(final List<String> lines) {
-        return lines.get(2).contains("<repository");
+    /**
+     * Reads the artifact descriptors of a (Tycho generated) p2 artifacts file.
+     */
+    private ArtifactDescriptorIndex readP2Artifacts(final File sourceArtifacts) throws IOException {
+        final ArtifactDescriptorIndex artifacts = new ArtifactDescriptorIndex();
+        artifacts.loadFragment(sourceArtifacts);
+        return artifacts;
     }
 
     /**
-     * Creates new file with additional lines in artifacts metadata (those lines allows to use merge / remove operations
-     * using p2 plugins).
-     * @param sourceP2Repository
-     * @param lines
-     * @return
-     * @throws FileNotFoundException
+     * Reads the installable units of a (Tycho generated) p2 metadata file.
      */
-    private File fixArtifactsRepositoryHeader(final File sourceP2Repository, final List<String> lines)
-            throws FileNotFoundException {
-        lines.add(2,
-                "<repository name=\"temporary\" type=\"org.eclipse.equinox.p2.artifact.repository.simpleRepository\" version=\"1\">");
-        lines.add(
-                3,
-                "<properties size=\"1\"><property name=\"p2.timestamp\" value=\""
-                        + String.valueOf(new Date().getTime()) + "\"/> </properties>");
-        lines.add(lines.size(), "</repository>");
-        File tempFile = FileUtils.createTempFile("temporary-p2artifacts", ".xml", sourceP2Repository);
+    private InstallableUnitIndex readP2Metadata(final File sourceContent) throws IOException {
+        final InstallableUnitIndex units = new InstallableUnitIndex();
+        units.loadFragment(sourceContent);
+        return units;
+    }
 
-        final PrintWriter writer = new PrintWriter(tempFile);
+    private void storeItemFromFile(final String path, final File file, final Repository repository) throws Exception {
+        InputStream in = null;
         try {
-            for (String line : lines) {
-                logger.debug(line);
-                writer.println(line);
-            }
-            writer.flush();
+            in = new FileInputStream(file);
+            final ResourceStoreRequest request = new ResourceStoreRequest(path);
+            storeItem(repository, request, in, mimeUtil.guessMimeTypeFromPath(request.getRequestPath()), null
+            /* attributes */);
         } finally {
-            writer.close();
+            IOUtil.close(in);
         }
-        return tempFile;
     }
 
     /**
-     * Method that allows to perform some operations defined by handler on each artifact (plugin, feature) deployed with
-     * -p2artifacts.xml
-     * @param repository repository where artifacts are deployed
-     * @param sourceArtifacts file deployed to repository
-     * @param sourceP2Repository path to p2 repository
-     * @param handler artifact handler
-     * @throws Exception error while processing artifacts
+     * @return the exposed artifacts.xml of the p2 repository at given root, which does not need to exist yet
      */
-    private void handleArtifacts(final Repository repository, final File sourceArtifacts,
-            final File sourceP2Repository, final InstallableArtifactsHandler handler) throws Exception {
-        // create a link in /plugins directory back to original jar
-        final Collection<InstallableArtifact> installableArtifacts = artifactRepository
-                .getInstallableArtifacts(sourceP2Repository.toURI());
+    private File getP2Artifacts(final Repository repository, final String root) throws Exception {
+        return retrieveFile(repository, root + P2Constants.ARTIFACTS_XML);
+    }
 
-        logger.debug("InstallableArtifacts: " + installableArtifacts);
+    private File getP2Content(final Repository repository, final String root) throws Exception {
+        return retrieveFile(repository, root + P2Constants.CONTENT_XML);
+    }
 
-        for (final InstallableArtifact installableArtifact : installableArtifacts) {
-            // do handle plug-ins and features, but not binaries
-            String subDirectory = null;
-            if (installableArtifact.getClassifier().equals("osgi.bundle")) {
-                subDirectory = "/plugins/";
-            } else if (installableArtifact.getClassifier().equals("org.eclipse.update.feature")) {
-                subDirectory = "/features/";
-            }
+    private static String repositoryName(final Repository repository, final String root) {
+        if (P2_REPOSITORY_ROOT_PATH.equals(root)) {
+            return repository.getId();
+        }
+        return repository.getId() + " " + P2RepositoryLayout.childLocation(root);
+    }
 
-            if (subDirectory != null) {
-                final String linkPath = P2_REPOSITORY_ROOT_PATH + subDirectory + installableArtifact.getId()
-                        + UNDERSCORE + installableArtifact.getVersion() + JAR;
+    private static String indexKey(final Repository repository, final String root) {
+        return repository.getId() + root;
+    }
 
-                // We need to create a path to the physical jar in the repository, relative to the repository.
-                // XXX: This is a hack.
-                String artifactPath = sourceArtifacts.getPath().replace("-p2artifacts.xml", JAR);
-                artifactPath = artifactPath.substring(artifactPath.indexOf(repository.getId())
-                        + repository.getId().length(), artifactPath.length());
+    /**
+     * @return true if the indexes of given repository keep only the keys of their entries once published. Shadow
+     *         indexes of a rebuild are not evicted before they are swapped in and published.
+     */
+    private boolean isStreaming(final Repository repository) {
+        final P2TychoRepositoryAggregatorConfiguration configuration = getConfiguration(repository.getId());
+        return configuration != null
+                && P2TychoRepositoryAggregatorConfiguration.STREAMING.equals(configuration.mergeEngine());
+    }
 
-                final StorageItem bundle = retrieveItem(repository, artifactPath);
-                handler.handleArtifact(repository, bundle, linkPath);
+    /**
+     * Returns the in-memory index of the aggregated artifacts.xml at given root, loading it from the exposed location
+     * on first access. Callers must hold the artifacts lock.
+     */
+    private ArtifactDescriptorIndex getArtifactsIndex(final Repository repository, final String root)
+            throws Exception {
+        ArtifactDescriptorIndex artifacts = artifactsIndexes.get(indexKey(repository, root));
+        if (artifacts == null) {
+            artifacts = load(repository, root, new ArtifactDescriptorIndex(), getP2Artifacts(repository, root));
+            artifactsIndexes.put(indexKey(repository, root), artifacts);
+        }
+        return artifacts;
+    }
+
+    /**
+     * Returns the in-memory index of the aggregated content.xml at given root, loading it from the exposed location on
+     * first access. Callers must hold the content lock.
+     */
+    private InstallableUnitIndex getContentIndex(final Repository repository, final String root) throws Exception {
+        InstallableUnitIndex units = contentIndexes.get(indexKey(repository, root));
+        if (units == null) {
+            units = load(repository, root, new InstallableUnitIndex(), getP2Content(repository, root));
+            contentIndexes.put(indexKey(repository, root), units);
+        }
+        return units;
+    }
+
+    /**
+     * Loads given empty index from the exposed document at given root, keeping only the keys of its entries with the
+     * streaming merge engine, or starts an empty p2 repository if there is no such document yet.
+     */
+    private <T extends P2RepositoryIndex> T load(final Repository repository, final String root, final T index,
+            final File file) throws IOException {
+        if (file.isFile() && isStreaming(repository)) {
+            index.loadKeys(file);
+        } else if (file.isFile()) {
+            index.load(file);
+        } else {
+            index.initialize(repositoryName(repository, root));
+        }
+        return index;
+    }
+
+    /**
+     * @return the live index of the p2 repository at given root, of the same kind as given index. Callers must hold
+     *         the matching artifacts / content lock.
+     */
+    private P2RepositoryIndex liveIndex(final Repository repository, final String root,
+            final P2RepositoryIndex index) throws Exception {
+        if (index instanceof ArtifactDescriptorIndex) {
+            return getArtifactsIndex(repository, root);
+        }
+        return getContentIndex(repository, root);
+    }
+
+    /**
+     * @return the exposed artifacts.xml or content.xml given index is published to
+     */
+    private File exposedOf(final Repository repository, final String root, final P2RepositoryIndex index)
+            throws Exception {
+        if (index instanceof ArtifactDescriptorIndex) {
+            return getP2Artifacts(repository, root);
+        }
+        return getP2Content(repository, root);
+    }
+
+    /**
+     * Returns the children of the composite p2 repository, loading them on first access. Callers must hold the state
+     * lock.
+     */
+    private P2CompositeIndex getCompositeIndex(final Repository repository) throws IOException {
+        P2CompositeIndex composite = compositeIndexes.get(repository.getId());
+        if (composite == null) {
+            composite = new P2CompositeIndex();
+            final File file = safeRetrieveFile(repository, P2_REPOSITORY_ROOT_PATH + "/"
+                    + P2CompositeIndex.COMPOSITE_CONTENT_XML);
+            if (file != null && file.isFile()) {
+                composite.load(file);
             }
+            compositeIndexes.put(repository.getId(), composite);
         }
+        return composite;
     }
 
-    private void updateP2Metadata(final Repository repository, final File sourceContent,
-            final File destinationP2Repository) throws Exception {
-        processP2Metadata(sourceContent, destinationP2Repository, new P2MetadataProcessor() {
+    /**
+     * Returns the manifest of fragments applied to the aggregated p2 repository, loading it on first access. A manifest
+     * that was never persisted makes the next rebuild a full one. The manifest is thread safe, artifacts fragments are
+     * recorded under the artifacts lock, metadata fragments under the content lock and it is written under the state
+     * lock.
+     */
+    private P2FragmentManifest getManifest(final Repository repository) throws IOException {
+        P2FragmentManifest manifest = manifests.get(repository.getId());
+        if (manifest == null) {
+            final P2FragmentManifest loaded = new P2FragmentManifest();
+            final File file = safeRetrieveFile(repository, P2_REPOSITORY_ROOT_PATH + "/" + P2FragmentManifest.FILE_NAME);
+            if (file != null && file.isFile()) {
+                loaded.load(file);
+            }
+            manifest = manifests.putIfAbsent(repository.getId(), loaded);
+            if (manifest == null) {
+                manifest = loaded;
+            }
+        }
+        return manifest;
+    }
+
+    private void writeManifest(final Repository repository, final P2FragmentManifest manifest) throws IOException {
+        manifest.write(retrieveFile(repository, P2_REPOSITORY_ROOT_PATH + "/" + P2FragmentManifest.FILE_NAME));
+    }
 
-            @Override
-            public void processMetadata(final File sourceP2Repository, final File destinationP2Repository) {
-                metadataRepository.merge(sourceP2Repository.toURI(), destinationP2Repository.toURI());
+    /**
+     * Drops all in-memory state kept for a repository.
+     */
+    private void forget(final String repositoryId) {
+        final String prefix = repositoryId + "/";
+        for (final Iterator<String> keys = artifactsIndexes.keySet().iterator(); keys.hasNext();) {
+            if (keys.next().startsWith(prefix)) {
+                keys.remove();
+            }
+        }
+        for (final Iterator<String> keys = contentIndexes.keySet().iterator(); keys.hasNext();) {
+            if (keys.next().startsWith(prefix)) {
+                keys.remove();
             }
-        });
+        }
+        compositeIndexes.remove(repositoryId);
+        manifests.remove(repositoryId);
     }
 
-    private void removeP2Metadata(final Repository repository, final File sourceContent,
-            final File destinationP2Repository) throws Exception {
-        processP2Metadata(sourceContent, destinationP2Repository, new P2MetadataProcessor() {
+    /**
+     * Publishes the artifacts.xml / content.xml of the p2 repositories (by root) that changed, in parallel on given
+     * executor if any. Callers must hold the matching artifacts / content lock.
+     */
+    private void publish(final Repository repository, final Collection<String> artifactsChanged,
+            final Collection<String> contentChanged, final ExecutorService executor) throws Exception {
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final String root : artifactsChanged) {
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    publish(repository, root, getArtifactsIndex(repository, root), getP2Artifacts(repository, root));
+                    return null;
+                }
+            });
+        }
+        for (final String root : contentChanged) {
+            tasks.add(new Callable<Void>() {
 
-            @Override
-            public void processMetadata(final File sourceP2Repository, final File destinationP2Repository) {
-                metadataRepository.remove(sourceP2Repository.toURI(), destinationP2Repository.toURI());
+                @Override
+                public Void call() throws Exception {
+                    publish(repository, root, getContentIndex(repository, root), getP2Content(repository, root));
+                    return null;
+                }
+            });
+        }
+        if (executor == null || tasks.size() < 2) {
+            for (final Callable<Void> task : tasks) {
+                task.call();
+            }
+        } else {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final Callable<Void> task : tasks) {
+                futures.add(executor.submit(task));
             }
-        });
+            for (final Future<Void> future : futures) {
+                future.get();
+            }
+        }
     }
 
-    private void processP2Metadata(final File sourceContent, final File destinationP2Repository,
-            final P2MetadataProcessor metadataProcessor) throws IOException, FileNotFoundException {
-        final File sourceP2Repository = createTemporaryP2Repository();
-        List<String> lines = readLinesFromFile(sourceContent);
-        try {
-            File fileToMerge = sourceContent;
-            // if there is no proper repository header (like from Tycho builds), we're adding one
-            if (!hasMetadataRepositoryHeader(lines)) {
-                fileToMerge = fixMetadataRepositoryHeader(sourceP2Repository, lines);
+    /**
+     * @return true if given roots may have to be added to or removed from the composite repository, answered without
+     *         holding any lock
+     */
+    private boolean mayChangeComposite(final Repository repository, final Collection<String> roots) {
+        final P2CompositeIndex composite = compositeIndexes.get(repository.getId());
+        if (composite == null) {
+            return !roots.isEmpty();
+        }
+        for (final String root : roots) {
+            final ArtifactDescriptorIndex artifacts = artifactsIndexes.get(indexKey(repository, root));
+            final InstallableUnitIndex units = contentIndexes.get(indexKey(repository, root));
+            if (!composite.contains(P2RepositoryLayout.childLocation(root)) || artifacts == null || units == null
+                    || artifacts.size() == 0 || units.size() == 0) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            // copy content to a temp location
-            FileUtils.copyFile(fileToMerge, new File(sourceP2Repository, CONTENT_XML));
-            metadataProcessor.processMetadata(sourceP2Repository, destinationP2Repository);
-        } finally {
-            deleteDirectory(sourceP2Repository);
+    /**
+     * Adds given roots to the composite repository, or deletes them when they no longer aggregate any artifact and
+     * unit, and publishes the composite repository if its children changed. Callers must hold all locks.
+     */
+    private void updateComposite(final Repository repository, final Collection<String> roots) throws Exception {
+        final P2CompositeIndex composite = getCompositeIndex(repository);
+        boolean changed = false;
+        for (final String root : roots) {
+            final String location = P2RepositoryLayout.childLocation(root);
+            if (getArtifactsIndex(repository, root).size() == 0 && getContentIndex(repository, root).size() == 0) {
+                changed |= composite.remove(location);
+                deleteP2Repository(repository, root);
+            } else {
+                changed |= composite.add(location);
+            }
+        }
+        if (changed) {
+            publish(repository, composite);
         }
     }
 
-    private File fixMetadataRepositoryHeader(final File sourceP2Repository, final List<String> lines)
-            throws FileNotFoundException {
-        File fileToMerge;
-        lines.add(1, "<?metadataRepository version='1.1.0'?>");
-        lines.add(
-                2,
-                "<repository name=\"temporary\" type=\"org.eclipse.equinox.internal.p2.metadata.repository.LocalMetadataRepository\" version=\"1\">");
-        lines.add(
-                3,
-                "<properties size=\"1\"><property name=\"p2.timestamp\" value=\""
-                        + String.valueOf(new Date().getTime()) + "\"/> </properties>");
-        lines.add(lines.size(), "</repository>");
-        fileToMerge = FileUtils.createTempFile("temporary-p2content", ".xml", sourceP2Repository);
+    /**
+     * Writes an in-memory index back to its exposed location, together with its compressed forms, as a new generation.
+     * Once published, the exposed files are swapped in atomically so they can be read at any time. Callers must hold
+     * the matching artifacts / content lock.
+     */
+    private void publish(final Repository repository, final String root, final P2RepositoryIndex index,
+            final File exposed) throws Exception {
+        final Publication publication = stage(repository, root, index, exposed, null);
+        try {
+            expose(repository, publication);
+        } finally {
+            publication.discard();
+        }
+    }
 
-        final PrintWriter writer = new PrintWriter(fileToMerge);
+    /**
+     * Writes an in-memory index as a new generation of its exposed document, together with its compressed forms,
+     * without exposing it yet. A first publication is written to a workspace, to be stored through nexus, all others
+     * to staging files next to the exposed ones.
+     * @param qualifier distinguishes the staging files of a publication written without holding the matching lock,
+     *            null if it is held
+     */
+    private Publication stage(final Repository repository, final String root, final P2RepositoryIndex index,
+            final File exposed, final String qualifier) throws Exception {
+        final Publication publication = new Publication(root, index, exposed);
+        index.setProperty(P2RepositoryIndex.P2_TIMESTAMP, String.valueOf(System.currentTimeMillis()));
+        index.setProperty(P2PublishStage.P2_GENERATION, String.valueOf(P2PublishStage.nextGeneration(index)));
         try {
-            for (String line : lines) {
-                logger.debug(line);
-                writer.println(line);
+            final File xz;
+            final File jar;
+            if (!exposed.exists()) {
+                // first publication, stored through nexus so the items get created properly
+                publication.workspace = workspaces.acquire();
+                xz = publication.workspace.file(P2RepositoryFormats.xzName(exposed.getName()));
+                jar = publication.workspace.file(P2RepositoryFormats.jarName(exposed.getName()));
+                publication.xml = publication.workspace.file(exposed.getName());
+            } else {
+                publication.stage = new P2PublishStage(exposed.getParentFile(), Long.parseLong(index
+                        .getProperty(P2PublishStage.P2_GENERATION)), qualifier);
+                // compressed forms go first, so no client picks up a new xml while an older compressed one is
+                // preferred
+                xz = publication.stage.stage(P2RepositoryFormats.xzName(exposed.getName()));
+                jar = publication.stage.stage(P2RepositoryFormats.jarName(exposed.getName()));
+                publication.xml = publication.stage.stage(exposed.getName());
             }
-            writer.flush();
-        } finally {
-            writer.close();
+            write(repository, root, index, publication.xml);
+            P2RepositoryFormats.writeXz(publication.xml, xz);
+            P2RepositoryFormats.writeJar(publication.xml, exposed.getName(), jar);
+            publication.length = publication.xml.length();
+        } catch (final Exception e) {
+            publication.discard();
+            throw e;
         }
-        return fileToMerge;
+        return publication;
     }
 
-    private boolean hasMetadataRepositoryHeader(final List<String> lines) {
-        return lines.get(1).contains("<?metadataRepository");
+    /**
+     * Exposes a staged publication: its staging files are renamed over the exposed ones, a first publication is stored
+     * through nexus. With the streaming merge engine the index then drops its entries, they are streamed from the
+     * exposed file on the next publication. Callers must hold the matching artifacts / content lock.
+     */
+    private void expose(final Repository repository, final Publication publication) throws Exception {
+        final String name = publication.exposed.getName();
+        metrics.of(repository.getId()).published(publication.root + "/" + name, publication.length,
+                publication.index.size());
+        if (publication.stage == null) {
+            storeItemFromFile(publication.root + "/" + name, publication.xml, repository);
+            if (isStreaming(repository)) {
+                publication.index.evict(publication.exposed);
+            }
+            final String jar = P2RepositoryFormats.jarName(name);
+            storeItemFromFile(publication.root + "/" + jar, publication.workspace.file(jar), repository);
+            final String xz = P2RepositoryFormats.xzName(name);
+            storeItemFromFile(publication.root + "/" + xz, publication.workspace.file(xz), repository);
+            if (safeRetrieveItem(repository, publication.root + "/" + P2RepositoryFormats.P2_INDEX) == null) {
+                storeP2Index(repository, publication.root, publication.workspace,
+                        P2RepositoryFormats.P2_INDEX_CONTENT);
+            }
+            return;
+        }
+        publication.stage.commit();
+        if (isStreaming(repository)) {
+            publication.index.evict(publication.exposed);
+        }
+        logger.debug("Published generation [{}] of [{}:{}]", new Object[] { publication.stage.generation(),
+                repository.getId(), publication.root + "/" + name });
     }
 
-    private List<String> readLinesFromFile(final File sourceContent) throws FileNotFoundException {
-        final Scanner scanner = new Scanner(sourceContent);
-        List<String> lines = new ArrayList<String>();
-        while (scanner.hasNext()) {
-            lines.add(scanner.nextLine());
+    /**
+     * Writes an index to be published. An evicted index (streaming engine) whose published document was changed by
+     * someone else meanwhile is rebased onto the changed document first, so the changes applied since get published
+     * on top of it instead of failing every publication from now on.
+     */
+    private void write(final Repository repository, final String root, final P2RepositoryIndex index,
+            final File file) throws IOException {
+        try {
+            index.write(file);
+        } catch (final P2RepositoryIndex.PublishedDocumentChangedException e) {
+            logger.warn("Re-applying changes of P2 repository [{}:{}] as it was changed outside of the aggregator: {}",
+                    new Object[] { repository.getId(), root, e.getMessage() });
+            index.rebase();
+            index.write(file);
         }
-        scanner.close();
-        return lines;
     }
 
-    private void storeItemFromFile(final String path, final File file, final Repository repository) throws Exception {
-        InputStream in = null;
+    /**
+     * Writes the children of the composite repository to compositeContent.xml / compositeArtifacts.xml.
+     */
+    private void publish(final Repository repository, final P2CompositeIndex composite) throws Exception {
+        final Workspace workspace = workspaces.acquire();
         try {
-            in = new FileInputStream(file);
-            final ResourceStoreRequest request = new ResourceStoreRequest(path);
-            storeItem(repository, request, in, mimeUtil.guessMimeTypeFromPath(request.getRequestPath()), null
-            /* attributes */);
+            final File content = workspace.file(P2CompositeIndex.COMPOSITE_CONTENT_XML);
+            composite.writeContent(content, repository.getId());
+            storeItemFromFile(P2_REPOSITORY_ROOT_PATH + "/" + content.getName(), content, repository);
+            final File artifacts = workspace.file(P2CompositeIndex.COMPOSITE_ARTIFACTS_XML);
+            composite.writeArtifacts(artifacts, repository.getId());
+            storeItemFromFile(P2_REPOSITORY_ROOT_PATH + "/" + artifacts.getName(), artifacts, repository);
         } finally {
-            IOUtil.close(in);
+            workspace.release();
         }
     }
 
-    private File getP2Artifacts(final P2TychoRepositoryAggregatorConfiguration configuration,
-            final Repository repository) throws Exception {
-        final String path = P2_REPOSITORY_ROOT_PATH + P2Constants.ARTIFACTS_XML;
-        File file = safeRetrieveFile(repository, path);
-        if (!file.exists()) {
-            createP2Repository(repository);
-            file = retrieveFile(repository, path);
+    /**
+     * Deletes a child p2 repository (including its links) that no longer aggregates anything.
+     */
+    private void deleteP2Repository(final Repository repository, final String root) throws Exception {
+        if (safeRetrieveItem(repository, root) != null) {
+            repository.deleteItem(new ResourceStoreRequest(root));
         }
-        return file;
+        artifactsIndexes.remove(indexKey(repository, root));
+        contentIndexes.remove(indexKey(repository, root));
+        metrics.of(repository.getId()).deleted(root);
     }
 
-    private File getP2Content(final P2TychoRepositoryAggregatorConfiguration configuration, final Repository repository)
+    /**
+     * Stores the jar and xz forms of an aggregated xml file next to the exposed one.
+     */
+    private void storeCompressedForms(final Repository repository, final String root, final File xml)
             throws Exception {
-        final String path = P2_REPOSITORY_ROOT_PATH + P2Constants.CONTENT_XML;
-        File file = safeRetrieveFile(repository, path);
-        if (!file.exists()) {
-            createP2Repository(repository);
-            file = retrieveFile(repository, path);
-        }
-        return file;
+        final File jar = new File(xml.getParentFile(), P2RepositoryFormats.jarName(xml.getName()));
+        P2RepositoryFormats.writeJar(xml, xml.getName(), jar);
+        storeItemFromFile(root + "/" + jar.getName(), jar, repository);
+
+        final File xz = new File(xml.getParentFile(), P2RepositoryFormats.xzName(xml.getName()));
+        P2RepositoryFormats.writeXz(xml, xz);
+        storeItemFromFile(root + "/" + xz.getName(), xz, repository);
     }
 
-    private void createP2Repository(final Repository repository) throws Exception {
-        File tempP2Repository = null;
+    private void storeP2Index(final Repository repository, final String root, final Workspace workspace,
+            final String content) throws Exception {
+        final File index = workspace.file(P2RepositoryFormats.P2_INDEX);
+        P2RepositoryFormats.writeIndex(index, content);
+        storeItemFromFile(root + "/" + P2RepositoryFormats.P2_INDEX, index, repository);
+    }
+
+    private void createP2Repository(final Repository repository, final P2RepositoryLayout layout) throws Exception {
+        final Workspace workspace = workspaces.acquire();
         try {
-            tempP2Repository = createTemporaryP2Repository();
-            // create empty artifact.xml file
-            artifactRepository.write(tempP2Repository.toURI(), Collections.<InstallableArtifact> emptyList(),
-                    repository.getId(), null /** repository properties */
-                    , null /* mappings */);
-            final String p2ArtifactsPath = P2_REPOSITORY_ROOT_PATH + P2Constants.ARTIFACTS_XML;
-            storeItemFromFile(p2ArtifactsPath, new File(tempP2Repository, ARTIFACTS_XML), repository);
-
-            // create empty content.xml file
-            metadataRepository.write(tempP2Repository.toURI(), Collections.<InstallableUnit> emptyList(),
-                    repository.getId(), null /** repository properties */
-            );
-            final String p2ContentPath = P2_REPOSITORY_ROOT_PATH + "/" + P2Constants.CONTENT_XML;
-            storeItemFromFile(p2ContentPath, new File(tempP2Repository, CONTENT_XML), repository);
+            if (layout.isComposite()) {
+                // empty composite repository, children are added as fragments get aggregated
+                publish(repository, new P2CompositeIndex());
+                storeP2Index(repository, P2_REPOSITORY_ROOT_PATH, workspace,
+                        P2RepositoryFormats.COMPOSITE_P2_INDEX_CONTENT);
+            } else {
+                // the p2 bridge gets empty directories, it must not see files left by earlier publications
+                final File artifacts = workspace.newDirectory("artifacts");
+                final File content = workspace.newDirectory("content");
+
+                // create empty artifact.xml file
+                artifactRepository.write(artifacts.toURI(), Collections.<InstallableArtifact> emptyList(),
+                        repository.getId(), null /** repository properties */
+                        , null /* mappings */);
+                final String p2ArtifactsPath = P2_REPOSITORY_ROOT_PATH + P2Constants.ARTIFACTS_XML;
+                storeItemFromFile(p2ArtifactsPath, new File(artifacts, ARTIFACTS_XML), repository);
+                storeCompressedForms(repository, P2_REPOSITORY_ROOT_PATH, new File(artifacts, ARTIFACTS_XML));
+
+                // create empty content.xml file
+                metadataRepository.write(content.toURI(), Collections.<InstallableUnit> emptyList(),
+                        repository.getId(), null /** repository properties */
+                );
+                final String p2ContentPath = P2_REPOSITORY_ROOT_PATH + "/" + P2Constants.CONTENT_XML;
+                storeItemFromFile(p2ContentPath, new File(content, CONTENT_XML), repository);
+                storeCompressedForms(repository, P2_REPOSITORY_ROOT_PATH, new File(content, CONTENT_XML));
+                storeP2Index(repository, P2_REPOSITORY_ROOT_PATH, workspace,
+                        P2RepositoryFormats.P2_INDEX_CONTENT);
+            }
+
+            // nothing is applied to an empty repository
+            final File manifest = safeRetrieveFile(repository, P2_REPOSITORY_ROOT_PATH + "/"
+                    + P2FragmentManifest.FILE_NAME);
+            if (manifest != null) {
+                manifest.delete();
+            }
+            forget(repository.getId());
         } finally {
-            FileUtils.deleteDirectory(tempP2Repository);
+            workspace.release();
         }
     }
 
-    private File createTemporaryP2Repository() throws IOException {
-        File tempP2Repository = File.createTempFile("nexus-p2-tycho-repository-plugin", "");
-        tempP2Repository.delete();
-        tempP2Repository.mkdirs();
-        return tempP2Repository;
+    /**
+     * @return the index of the p2 repository at given root a rebuild works on, starting with given (current) one
+     */
+    private static <T extends P2RepositoryIndex> T rebuiltIndex(final Map<String, T> rebuilt, final String root,
+            final T current) {
+        if (!rebuilt.containsKey(root)) {
+            rebuilt.put(root, current);
+        }
+        return rebuilt.get(root);
+    }
+
+    /**
+     * A fragment parsed during a rebuild, together with its manifest entry and the root of the p2 repository it is
+     * aggregated into.
+     */
+    private static class ParsedFragment {
+
+        private final String path;
+
+        private final String root;
+
+        private final P2FragmentManifest.Entry entry;
+
+        private final P2RepositoryIndex index;
+
+        ParsedFragment(final String path, final String root, final P2FragmentManifest.Entry entry,
+                final P2RepositoryIndex index) {
+            this.path = path;
+            this.root = root;
+            this.entry = entry;
+            this.index = index;
+        }
+
+    }
+
+    /**
+     * A new generation of an aggregated artifacts.xml / content.xml with its compressed forms, written but not exposed
+     * yet.
+     */
+    private static class Publication {
+
+        private final String root;
+
+        private final P2RepositoryIndex index;
+
+        private final File exposed;
+
+        // generation of the document the index was based on, null if there was none
+        private final String base;
+
+        // staging files next to the exposed ones, null for a first publication
+        private P2PublishStage stage;
+
+        // holds the files of a first publication
+        private Workspace workspace;
+
+        private File xml;
+
+        private long length;
+
+        Publication(final String root, final P2RepositoryIndex index, final File exposed) {
+            this.root = root;
+            this.index = index;
+            this.exposed = exposed;
+            base = index.getProperty(P2PublishStage.P2_GENERATION);
+        }
+
+        /**
+         * Deletes the files that were not exposed, nothing but the workspace once the publication was exposed.
+         */
+        void discard() {
+            if (stage != null) {
+                stage.abort();
+            }
+            if (workspace != null) {
+                workspace.release();
+                workspace = null;
+            }
+        }
+
+    }
+
+    /**
+     * Fragment events that arrived while a repository was being rebuilt, the last one per path.
+     */
+    private static class RebuildJournal {
+
+        // repository path -> true if deleted
+        private final Map<String, Boolean> events = new LinkedHashMap<String, Boolean>();
+
+        synchronized void record(final Collection<StorageItem> stored, final Collection<StorageItem> deleted) {
+            for (final StorageItem item : deleted) {
+                events.remove(item.getPath());
+                events.put(item.getPath(), Boolean.TRUE);
+            }
+            for (final StorageItem item : stored) {
+                events.remove(item.getPath());
+                events.put(item.getPath(), Boolean.FALSE);
+            }
+        }
+
+        synchronized Map<String, Boolean> events() {
+            return new LinkedHashMap<String, Boolean>(events);
+        }
+
     }
 
 }
@@ -12,10 +12,7 @@
 package com.qualitype.nexus.plugins.tycho.internal;
 
 import java.io.File;
-import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 
 import org.sonatype.nexus.proxy.LocalStorageException;
@@ -88,12 +85,6 @@ class NexusUtils {
         repository.storeItem(false, link);
     }
 
-    static void deleteLink(final Repository repository, final StorageItem item, final String path) throws Exception {
-        final ResourceStoreRequest req = new ResourceStoreRequest(path);
-        req.getRequestContext().putAll(item.getItemContext());
-        repository.deleteItem(req);
-    }
-
     static File localStorageOfRepositoryAsFile(final Repository repository) throws LocalStorageException {
         if (repository.getLocalUrl() != null && repository.getLocalStorage() instanceof DefaultFSLocalRepositoryStorage) {
             final File baseDir = ((DefaultFSLocalRepositoryStorage) repository.getLocalStorage()).getBaseDir(
@@ -105,33 +96,6 @@ class NexusUtils {
                 repository.getId()));
     }
 
-    static String getRelativePath(final File fromFile, final File toFile) {
-        final String[] fromSegments = getReversePathSegments(fromFile);
-        final String[] toSegments = getReversePathSegments(toFile);
-
-        String relativePath = "";
-        int i = fromSegments.length - 1;
-        int j = toSegments.length - 1;
-
-        // first eliminate common root
-        while ((i >= 0) && (j >= 0) && (fromSegments[i].equals(toSegments[j]))) {
-            i--;
-            j--;
-        }
-
-        for (; i >= 0; i--) {
-            relativePath += ".." + File.separator;
-        }
-
-        for (; j >= 1; j--) {
-            relativePath += toSegments[j] + File.separator;
-        }
-
-        relativePath += toSegments[j];
-
-        return relativePath;
-    }
-
     static boolean isHidden(final String path) {
         if (path == null) {
             return false;
@@ -139,20 +103,4 @@ class NexusUtils {
         return path.startsWith(DOT) || path.startsWith("/" + DOT) || path.startsWith(File.separator + DOT);
     }
 
-    private static String[] getReversePathSegments(final File file) {
-        final List<String> paths = new ArrayList<String>();
-
-        File segment;
-        try {
-            segment = file.getCanonicalFile();
-            while (segment != null) {
-                paths.add(segment.getName());
-                segment = segment.getParentFile();
-            }
-        } catch (final IOException e) {
-            return null;
-        }
-        return paths.toArray(new String[paths.size()]);
-    }
-
 }
\ No newline at end of file
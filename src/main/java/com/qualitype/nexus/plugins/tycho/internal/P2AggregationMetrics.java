@@ -0,0 +1,310 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+
+import com.qualitype.nexus.plugins.tycho.internal.P2RepositoryLocks.Domain;
+import com.qualitype.nexus.plugins.tycho.internal.P2RepositoryLocks.LockStatistics;
+
+/**
+ * Collects what aggregation costs per repository and exposes it as a {@link P2TychoAggregatorMXBean} on the platform
+ * MBean server while aggregation is enabled for the repository.
+ */
+@Named
+@Singleton
+public class P2AggregationMetrics {
+
+    static final String DOMAIN = "com.qualitype.nexus.plugins.tycho";
+
+    enum Operation {
+        UPDATE_METADATA, REMOVE_METADATA, UPDATE_ARTIFACTS, REMOVE_ARTIFACTS, REBUILD
+    }
+
+    @Inject
+    private Logger logger;
+
+    private final P2RepositoryLocks locks;
+
+    private final ConcurrentMap<String, RepositoryMetrics> repositories;
+
+    @Inject
+    public P2AggregationMetrics(final P2RepositoryLocks locks) {
+        this.locks = locks;
+        repositories = new ConcurrentHashMap<String, RepositoryMetrics>();
+    }
+
+    RepositoryMetrics of(final String repositoryId) {
+        RepositoryMetrics metrics = repositories.get(repositoryId);
+        if (metrics == null) {
+            final RepositoryMetrics created = new RepositoryMetrics(repositoryId);
+            metrics = repositories.putIfAbsent(repositoryId, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Registers the MBean of given repository, replacing one left behind by an earlier registration.
+     */
+    void register(final String repositoryId) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = objectName(repositoryId);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(of(repositoryId), P2TychoAggregatorMXBean.class, true), name);
+        } catch (final Exception e) {
+            logger.warn(String.format("Could not register aggregation metrics of repository [%s] due to [%s]",
+                    repositoryId, e.getMessage()), e);
+        }
+    }
+
+    void unregister(final String repositoryId) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = objectName(repositoryId);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (final Exception e) {
+            logger.debug("Could not unregister aggregation metrics of repository [{}]: {}", repositoryId,
+                    e.getMessage());
+        }
+    }
+
+    static ObjectName objectName(final String repositoryId) throws Exception {
+        return new ObjectName(DOMAIN + ":type=P2TychoRepositoryAggregator,repository="
+                + ObjectName.quote(repositoryId));
+    }
+
+    class RepositoryMetrics implements P2TychoAggregatorMXBean {
+
+        private final String repositoryId;
+
+        private final Map<Operation, Timer> timers;
+
+        // repository path of a published xml file -> its size in bytes and number of entries
+        private final ConcurrentMap<String, long[]> published = new ConcurrentHashMap<String, long[]>();
+
+        private final AtomicLong linksCreated = new AtomicLong();
+
+        private final AtomicLong linksDeleted = new AtomicLong();
+
+        private final AtomicLong unchangedFragments = new AtomicLong();
+
+        private final AtomicInteger backlog = new AtomicInteger();
+
+        RepositoryMetrics(final String repositoryId) {
+            this.repositoryId = repositoryId;
+            timers = new EnumMap<Operation, Timer>(Operation.class);
+            for (final Operation operation : Operation.values()) {
+                timers.put(operation, new Timer());
+            }
+        }
+
+        /**
+         * @param start {@link System#nanoTime()} the operation started at
+         */
+        void succeeded(final Operation operation, final long start) {
+            timers.get(operation).record(System.nanoTime() - start, false);
+        }
+
+        void failed(final Operation operation, final long start) {
+            timers.get(operation).record(System.nanoTime() - start, true);
+        }
+
+        void published(final String path, final long bytes, final int entries) {
+            published.put(path, new long[] { bytes, entries });
+        }
+
+        /**
+         * Forgets the published files of a p2 repository that got deleted.
+         */
+        void deleted(final String root) {
+            for (final Iterator<String> paths = published.keySet().iterator(); paths.hasNext();) {
+                if (paths.next().startsWith(root + "/")) {
+                    paths.remove();
+                }
+            }
+        }
+
+        void linksReconciled(final int created, final int deleted) {
+            linksCreated.addAndGet(created);
+            linksDeleted.addAndGet(deleted);
+        }
+
+        /**
+         * Counts a stored fragment that did not change the aggregated p2 repository.
+         */
+        void unchanged() {
+            unchangedFragments.incrementAndGet();
+        }
+
+        void backlog(final int size) {
+            backlog.set(size);
+        }
+
+        @Override
+        public OperationTimes getUpdateMetadata() {
+            return timers.get(Operation.UPDATE_METADATA).snapshot();
+        }
+
+        @Override
+        public OperationTimes getRemoveMetadata() {
+            return timers.get(Operation.REMOVE_METADATA).snapshot();
+        }
+
+        @Override
+        public OperationTimes getUpdateArtifacts() {
+            return timers.get(Operation.UPDATE_ARTIFACTS).snapshot();
+        }
+
+        @Override
+        public OperationTimes getRemoveArtifacts() {
+            return timers.get(Operation.REMOVE_ARTIFACTS).snapshot();
+        }
+
+        @Override
+        public OperationTimes getRebuild() {
+            return timers.get(Operation.REBUILD).snapshot();
+        }
+
+        @Override
+        public Map<String, LockTimes> getLocks() {
+            final Map<String, LockTimes> times = new LinkedHashMap<String, LockTimes>();
+            for (final Map.Entry<Domain, LockStatistics> lock : locks.statistics(repositoryId).entrySet()) {
+                final LockStatistics statistics = lock.getValue();
+                times.put(lock.getKey().name(), new LockTimes(statistics.acquisitions(), statistics.waitMillis(),
+                        statistics.maxWaitMillis(), statistics.holdMillis(), statistics.maxHoldMillis()));
+            }
+            return times;
+        }
+
+        @Override
+        public long getContentBytes() {
+            return sum("/content.xml", 0);
+        }
+
+        @Override
+        public long getUnitCount() {
+            return sum("/content.xml", 1);
+        }
+
+        @Override
+        public long getArtifactsBytes() {
+            return sum("/artifacts.xml", 0);
+        }
+
+        @Override
+        public long getArtifactCount() {
+            return sum("/artifacts.xml", 1);
+        }
+
+        private long sum(final String suffix, final int column) {
+            long sum = 0;
+            for (final Map.Entry<String, long[]> file : published.entrySet()) {
+                if (file.getKey().endsWith(suffix)) {
+                    sum += file.getValue()[column];
+                }
+            }
+            return sum;
+        }
+
+        @Override
+        public long getLinksCreated() {
+            return linksCreated.get();
+        }
+
+        @Override
+        public long getLinksDeleted() {
+            return linksDeleted.get();
+        }
+
+        @Override
+        public long getUnchangedFragments() {
+            return unchangedFragments.get();
+        }
+
+        @Override
+        public int getBacklog() {
+            return backlog.get();
+        }
+
+    }
+
+    /**
+     * Count, failures, total / max time and a histogram (up to 10ms, 100ms, 1s, 10s and above) of an operation.
+     */
+    static class Timer {
+
+        private static final long[] BUCKET_LIMITS = { 10, 100, 1000, 10000 };
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong failures = new AtomicLong();
+
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_LIMITS.length + 1);
+
+        void record(final long nanos, final boolean failed) {
+            count.incrementAndGet();
+            if (failed) {
+                failures.incrementAndGet();
+            }
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+            final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS.length && millis > BUCKET_LIMITS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+        }
+
+        P2TychoAggregatorMXBean.OperationTimes snapshot() {
+            return new P2TychoAggregatorMXBean.OperationTimes(count.get(), failures.get(),
+                    TimeUnit.NANOSECONDS.toMillis(totalNanos.get()), TimeUnit.NANOSECONDS.toMillis(maxNanos.get()),
+                    buckets.get(0), buckets.get(1), buckets.get(2), buckets.get(3), buckets.get(4));
+        }
+
+    }
+
+}
@@ -0,0 +1,213 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Phase timings of one aggregation operation (a batch of fragment events or a rebuild) of a repository. Phases are
+ * entered one after the other by the thread running the operation; the trace can be read meanwhile, showing the phase
+ * the operation is in.
+ */
+public class P2AggregationTrace {
+
+    public enum Phase {
+
+        /**
+         * waiting for the lock domains of the repository
+         */
+        LOCK_WAIT,
+
+        /**
+         * scanning the repository for fragments (rebuild)
+         */
+        SCAN,
+
+        /**
+         * reading and parsing fragments, including the injected repository header
+         */
+        READ,
+
+        /**
+         * applying fragments to the in-memory indexes and the manifest
+         */
+        APPLY,
+
+        /**
+         * replaying fragment events that arrived during a rebuild
+         */
+        REPLAY,
+
+        /**
+         * creating and deleting /plugins and /features links
+         */
+        LINKS,
+
+        /**
+         * writing content.xml / artifacts.xml with their compressed forms
+         */
+        PUBLISH,
+
+        /**
+         * updating the composite repository
+         */
+        COMPOSITE,
+
+        /**
+         * writing the fragment manifest
+         */
+        MANIFEST
+
+    }
+
+    private final String repositoryId;
+
+    private final String operation;
+
+    private final String detail;
+
+    private final long startedAt;
+
+    private final long start;
+
+    private final Map<Phase, Long> phaseNanos = new EnumMap<Phase, Long>(Phase.class);
+
+    private Phase phase;
+
+    private long phaseStart;
+
+    private long elapsed = -1;
+
+    private String failure;
+
+    P2AggregationTrace(final String repositoryId, final String operation, final String detail) {
+        this.repositoryId = repositoryId;
+        this.operation = operation;
+        this.detail = detail;
+        startedAt = System.currentTimeMillis();
+        start = System.nanoTime();
+    }
+
+    /**
+     * Enters given phase, ending the current one. Time spent in a phase entered several times adds up.
+     */
+    synchronized void begin(final Phase next) {
+        end();
+        phase = next;
+        phaseStart = System.nanoTime();
+    }
+
+    /**
+     * Ends the current phase, if any.
+     */
+    synchronized void end() {
+        if (phase != null) {
+            final Long spent = phaseNanos.get(phase);
+            phaseNanos.put(phase, (spent == null ? 0 : spent) + System.nanoTime() - phaseStart);
+            phase = null;
+        }
+    }
+
+    synchronized void failed(final Throwable e) {
+        failure = e.getMessage() == null ? e.getClass().getSimpleName()
+                : e.getClass().getSimpleName() + ": " + e.getMessage();
+    }
+
+    synchronized void finished() {
+        end();
+        elapsed = System.nanoTime() - start;
+    }
+
+    public String getRepositoryId() {
+        return repositoryId;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getDetail() {
+        return detail;
+    }
+
+    /**
+     * @return wall clock time the operation started at
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * @return time the operation took, or has taken so far if it is still running
+     */
+    public synchronized long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(elapsed >= 0 ? elapsed : System.nanoTime() - start);
+    }
+
+    public synchronized boolean isRunning() {
+        return elapsed < 0;
+    }
+
+    /**
+     * @return phase a running operation is in, null if it is between phases or finished
+     */
+    public synchronized Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return milliseconds spent per phase (so far), in phase order
+     */
+    public synchronized Map<Phase, Long> getPhaseMillis() {
+        final Map<Phase, Long> millis = new EnumMap<Phase, Long>(Phase.class);
+        for (final Map.Entry<Phase, Long> spent : phaseNanos.entrySet()) {
+            millis.put(spent.getKey(), TimeUnit.NANOSECONDS.toMillis(spent.getValue()));
+        }
+        if (phase != null) {
+            final Long spent = millis.get(phase);
+            millis.put(phase, (spent == null ? 0 : spent)
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - phaseStart));
+        }
+        return millis;
+    }
+
+    /**
+     * @return the failure that ended the operation, null if it succeeded
+     */
+    public synchronized String getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return one line, key=value record of the trace
+     */
+    @Override
+    public synchronized String toString() {
+        final StringBuilder record = new StringBuilder();
+        record.append("repository=").append(repositoryId).append(" operation=").append(operation)
+                .append(" elapsedMs=").append(getElapsedMillis());
+        for (final Map.Entry<Phase, Long> spent : getPhaseMillis().entrySet()) {
+            record.append(' ').append(spent.getKey().name().toLowerCase()).append("Ms=").append(spent.getValue());
+        }
+        if (isRunning()) {
+            record.append(" running=").append(phase == null ? "" : phase.name().toLowerCase());
+        }
+        if (failure != null) {
+            record.append(" failure=\"").append(failure).append('"');
+        }
+        record.append(" detail=\"").append(detail).append('"');
+        return record.toString();
+    }
+
+}
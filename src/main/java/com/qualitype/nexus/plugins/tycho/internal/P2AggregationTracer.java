@@ -0,0 +1,129 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.sonatype.nexus.proxy.item.StorageItem;
+
+/**
+ * Keeps the traces of running aggregation operations and of the last ones that finished, and logs operations slower
+ * than a threshold, so stalled deploys can be told apart by what they were waiting on.
+ */
+@Named
+@Singleton
+public class P2AggregationTracer {
+
+    /**
+     * Number of finished operations kept.
+     */
+    static final String TRACE_SIZE_PROPERTY = "p2.tycho.aggregator.traceSize";
+
+    /**
+     * Operations taking longer (in milliseconds) are logged.
+     */
+    static final String SLOW_OPERATION_PROPERTY = "p2.tycho.aggregator.slowOperationMillis";
+
+    private static final int DEFAULT_TRACE_SIZE = 100;
+
+    private static final long DEFAULT_SLOW_OPERATION_MILLIS = 10000;
+
+    // paths listed in the detail of a trace
+    private static final int DETAIL_PATHS = 5;
+
+    @Inject
+    private Logger logger;
+
+    private final int size;
+
+    private final long slowMillis;
+
+    private final Set<P2AggregationTrace> running;
+
+    // newest first
+    private final LinkedList<P2AggregationTrace> finished;
+
+    public P2AggregationTracer() {
+        size = Math.max(0, Integer.getInteger(TRACE_SIZE_PROPERTY, DEFAULT_TRACE_SIZE));
+        slowMillis = Long.getLong(SLOW_OPERATION_PROPERTY, DEFAULT_SLOW_OPERATION_MILLIS);
+        running = Collections.newSetFromMap(new ConcurrentHashMap<P2AggregationTrace, Boolean>());
+        finished = new LinkedList<P2AggregationTrace>();
+    }
+
+    P2AggregationTrace start(final String repositoryId, final String operation, final String detail) {
+        final P2AggregationTrace trace = new P2AggregationTrace(repositoryId, operation, detail);
+        running.add(trace);
+        return trace;
+    }
+
+    void finish(final P2AggregationTrace trace) {
+        trace.finished();
+        running.remove(trace);
+        synchronized (finished) {
+            finished.addFirst(trace);
+            while (finished.size() > size) {
+                finished.removeLast();
+            }
+        }
+        if (trace.getElapsedMillis() >= slowMillis) {
+            logger.warn("Slow P2 aggregation operation: {}", trace);
+        }
+    }
+
+    /**
+     * @return traces of the running operations followed by the finished ones, newest first
+     */
+    public List<P2AggregationTrace> traces() {
+        final List<P2AggregationTrace> traces = new ArrayList<P2AggregationTrace>(running);
+        Collections.sort(traces, new Comparator<P2AggregationTrace>() {
+
+            @Override
+            public int compare(final P2AggregationTrace o1, final P2AggregationTrace o2) {
+                return o1.getStartedAt() < o2.getStartedAt() ? 1 : o1.getStartedAt() == o2.getStartedAt() ? 0 : -1;
+            }
+        });
+        synchronized (finished) {
+            traces.addAll(finished);
+        }
+        return traces;
+    }
+
+    /**
+     * @return "n stored, m deleted: path, ..." listing the first few paths of a batch
+     */
+    static String detailOf(final Collection<StorageItem> stored, final Collection<StorageItem> deleted) {
+        final StringBuilder detail = new StringBuilder();
+        detail.append(stored.size()).append(" stored, ").append(deleted.size()).append(" deleted");
+        final List<StorageItem> items = new ArrayList<StorageItem>(stored);
+        items.addAll(deleted);
+        for (int i = 0; i < items.size(); i++) {
+            if (i == DETAIL_PATHS) {
+                return detail.append(", ...").toString();
+            }
+            detail.append(i == 0 ? ": " : ", ").append(items.get(i).getPath());
+        }
+        return detail.toString();
+    }
+
+}
@@ -0,0 +1,138 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Children of a p2 composite repository, written as compositeContent.xml and compositeArtifacts.xml (both list the
+ * same children). Safe to query while it is being updated.
+ */
+class P2CompositeIndex {
+
+    static final String COMPOSITE_CONTENT_XML = "compositeContent.xml";
+
+    static final String COMPOSITE_ARTIFACTS_XML = "compositeArtifacts.xml";
+
+    private static final String CHILD = "child";
+
+    private static final String LOCATION = "location";
+
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    private final Set<String> children = new TreeSet<String>();
+
+    synchronized Collection<String> children() {
+        return Collections.unmodifiableCollection(new ArrayList<String>(children));
+    }
+
+    synchronized boolean contains(final String location) {
+        return children.contains(location);
+    }
+
+    /**
+     * @return true if the child was not yet part of the composite repository
+     */
+    synchronized boolean add(final String location) {
+        return children.add(location);
+    }
+
+    /**
+     * @return true if the child was part of the composite repository
+     */
+    synchronized boolean remove(final String location) {
+        return children.remove(location);
+    }
+
+    synchronized void load(final File file) throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            final XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                children.clear();
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && CHILD.equals(reader.getLocalName())) {
+                        children.add(reader.getAttributeValue(null, LOCATION));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (final XMLStreamException e) {
+            throw new IOException("Could not parse p2 composite repository: " + e.getMessage(), e);
+        } finally {
+            IOUtil.close(in);
+        }
+    }
+
+    synchronized void writeContent(final File file, final String name) throws IOException {
+        write(file, "compositeMetadataRepository",
+                "org.eclipse.equinox.internal.p2.metadata.repository.CompositeMetadataRepository", name);
+    }
+
+    synchronized void writeArtifacts(final File file, final String name) throws IOException {
+        write(file, "compositeArtifactRepository",
+                "org.eclipse.equinox.internal.p2.artifact.repository.CompositeArtifactRepository", name);
+    }
+
+    private void write(final File file, final String processingInstruction, final String type, final String name)
+            throws IOException {
+        final StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version='1.0' encoding='UTF-8'?>\n");
+        xml.append("<?").append(processingInstruction).append(" version='1.0.0'?>\n");
+        xml.append("<repository name='").append(P2RepositoryIndex.escape(name)).append("' type='").append(type)
+                .append("' version='1.0.0'>\n");
+        xml.append("  <properties size='1'>\n");
+        xml.append("    <property name='").append(P2RepositoryIndex.P2_TIMESTAMP).append("' value='")
+                .append(System.currentTimeMillis()).append("'/>\n");
+        xml.append("  </properties>\n");
+        xml.append("  <children size='").append(children.size()).append("'>\n");
+        for (final String child : children) {
+            xml.append("    <").append(CHILD).append(' ').append(LOCATION).append("='")
+                    .append(P2RepositoryIndex.escape(child)).append("'/>\n");
+        }
+        xml.append("  </children>\n");
+        xml.append("</repository>\n");
+
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(xml.toString().getBytes(P2RepositoryIndex.UTF_8));
+        } finally {
+            IOUtil.close(out);
+        }
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        return factory;
+    }
+
+}
@@ -0,0 +1,150 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Canonical content hash of p2 repository entries (units, artifacts), fed with the parse events of one entry at a
+ * time. Formatting, attribute order, collection size attributes and volatile properties do not change the hash, so an
+ * entry deployed again without a semantic change hashes alike, whether it was read from a Tycho fragment or from a
+ * published p2 repository. Volatile are the {@code p2.timestamp} property and the properties listed (comma separated)
+ * in the {@value #VOLATILE_PROPERTIES_PROPERTY} system property.
+ */
+class P2EntryDigest {
+
+    static final String VOLATILE_PROPERTIES_PROPERTY = "p2.tycho.aggregator.volatileProperties";
+
+    private static final Set<String> VOLATILE_PROPERTIES = volatileProperties();
+
+    private static final String PROPERTY = "property";
+
+    private static final String SIZE = "size";
+
+    private static final byte START_ELEMENT = 1;
+
+    private static final byte ATTRIBUTE = 2;
+
+    private static final byte END_ELEMENT = 3;
+
+    private static final byte TEXT = 4;
+
+    private final MessageDigest digest;
+
+    // depth within a skipped (volatile) element, 0 if none is being skipped
+    private int skipped;
+
+    P2EntryDigest() {
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param reader positioned on a start element
+     */
+    void startElement(final XMLStreamReader reader) {
+        if (skipped > 0) {
+            skipped++;
+            return;
+        }
+        final String name = reader.getLocalName();
+        if (PROPERTY.equals(name) && VOLATILE_PROPERTIES.contains(reader.getAttributeValue(null, "name"))) {
+            skipped = 1;
+            return;
+        }
+        digest.update(START_ELEMENT);
+        update(name);
+        final Map<String, String> attributes = new TreeMap<String, String>();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (!SIZE.equals(reader.getAttributeLocalName(i))) {
+                attributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
+        }
+        for (final Map.Entry<String, String> attribute : attributes.entrySet()) {
+            digest.update(ATTRIBUTE);
+            update(attribute.getKey());
+            update(attribute.getValue());
+        }
+    }
+
+    void endElement() {
+        if (skipped > 0) {
+            skipped--;
+            return;
+        }
+        digest.update(END_ELEMENT);
+    }
+
+    void text(final String text) {
+        final String trimmed = text.trim();
+        if (skipped > 0 || trimmed.length() == 0) {
+            return;
+        }
+        digest.update(TEXT);
+        update(trimmed);
+    }
+
+    /**
+     * @return the hash of the entry fed since the last call, resetting the digest for the next entry
+     */
+    byte[] finish() {
+        skipped = 0;
+        return digest.digest();
+    }
+
+    static boolean equal(final byte[] hash, final byte[] other) {
+        return hash != null && Arrays.equals(hash, other);
+    }
+
+    private void update(final String value) {
+        final byte[] bytes;
+        try {
+            bytes = value.getBytes(P2RepositoryIndex.UTF_8);
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        // length prefixed, so adjacent values cannot be shifted into each other
+        digest.update((byte) (bytes.length >>> 24));
+        digest.update((byte) (bytes.length >>> 16));
+        digest.update((byte) (bytes.length >>> 8));
+        digest.update((byte) bytes.length);
+        digest.update(bytes);
+    }
+
+    private static Set<String> volatileProperties() {
+        final Set<String> properties = new HashSet<String>();
+        properties.add(P2RepositoryIndex.P2_TIMESTAMP);
+        final String configured = System.getProperty(VOLATILE_PROPERTIES_PROPERTY);
+        if (configured != null) {
+            for (final String property : configured.split(",")) {
+                if (property.trim().length() > 0) {
+                    properties.add(property.trim());
+                }
+            }
+        }
+        return Collections.unmodifiableSet(properties);
+    }
+
+}
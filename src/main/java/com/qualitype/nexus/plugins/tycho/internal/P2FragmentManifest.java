@@ -0,0 +1,368 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Records path, size, modification time and content digest of every p2 fragment applied to the aggregated p2
+ * repository, so a rebuild only needs to apply fragments that were added, changed or removed since. It is also the
+ * ledger of what each fragment contributed (the p2 repository root and the keys of its artifacts / units), so a deleted
+ * or overwritten fragment can be taken back without reading it again. Keys contributed by several fragments are
+ * reference counted and only released by the last one. Thread safe.
+ */
+class P2FragmentManifest {
+
+    static final String FILE_NAME = "tycho-fragments.manifest";
+
+    private static final String SEPARATOR = "\t";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    // kind + root + key -> number of fragments contributing it
+    private final Map<String, Integer> references = new HashMap<String, Integer>();
+
+    private boolean persisted;
+
+    /**
+     * @return true if the manifest was loaded from (or written to) disk, false for a manifest that never was
+     */
+    synchronized boolean isPersisted() {
+        return persisted;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized Entry get(final String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * @return a snapshot of all entries, by fragment path
+     */
+    synchronized Map<String, Entry> entries() {
+        return new TreeMap<String, Entry>(entries);
+    }
+
+    /**
+     * @return true if the contributions of all given fragments (that are recorded at all) are known
+     */
+    synchronized boolean hasContributions(final Collection<String> paths) {
+        for (final String path : paths) {
+            final Entry entry = entries.get(path);
+            if (entry != null && entry.keys == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records a (new version of a) fragment.
+     * @return keys the previous version contributed that no fragment contributes any more
+     */
+    synchronized Set<String> put(final String path, final Entry entry) {
+        reference(path, entry);
+        return release(path, entries.put(path, entry));
+    }
+
+    /**
+     * @return keys the fragment contributed that no fragment contributes any more
+     */
+    synchronized Set<String> remove(final String path) {
+        return release(path, entries.remove(path));
+    }
+
+    /**
+     * @return an independent copy of this manifest, including the reference counts
+     */
+    synchronized P2FragmentManifest copy() {
+        final P2FragmentManifest copy = new P2FragmentManifest();
+        copy.entries.putAll(entries);
+        copy.references.putAll(references);
+        copy.persisted = persisted;
+        return copy;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        references.clear();
+    }
+
+    /**
+     * @param subtree repository path of a directory, null for the whole repository
+     * @return paths of the recorded fragments below given directory
+     */
+    synchronized List<String> paths(final String subtree) {
+        final List<String> paths = new ArrayList<String>();
+        for (final String path : entries.keySet()) {
+            if (isBelow(path, subtree)) {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Compares the manifest against the fragments currently in storage.
+     * @param fragments repository path to file of all fragments in storage
+     */
+    Diff diff(final Map<String, File> fragments) throws IOException {
+        return diff(fragments, null);
+    }
+
+    /**
+     * Compares the manifest against the fragments currently in storage below a directory.
+     * @param fragments repository path to file of all fragments in storage below given directory
+     * @param subtree repository path of the directory, null for the whole repository
+     */
+    synchronized Diff diff(final Map<String, File> fragments, final String subtree) throws IOException {
+        final Diff diff = new Diff();
+        for (final Map.Entry<String, File> fragment : fragments.entrySet()) {
+            final Entry recorded = entries.get(fragment.getKey());
+            final File file = fragment.getValue();
+            if (recorded == null) {
+                diff.added.add(fragment.getKey());
+            } else if (recorded.size != file.length() || recorded.modified != file.lastModified()) {
+                // touched, only changed if the content differs
+                if (recorded.digest.equals(digest(file))) {
+                    entries.put(fragment.getKey(), new Entry(file.length(), file.lastModified(), recorded.digest,
+                            recorded.root, recorded.keys));
+                } else {
+                    diff.changed.add(fragment.getKey());
+                }
+            }
+        }
+        final Set<String> removed = new HashSet<String>(paths(subtree));
+        removed.removeAll(fragments.keySet());
+        diff.removed.addAll(removed);
+        return diff;
+    }
+
+    synchronized void load(final File file) throws IOException {
+        clear();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                P2RepositoryIndex.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] segments = line.split(SEPARATOR);
+                if (segments.length == 4) {
+                    // contributions not recorded
+                    entries.put(segments[0],
+                            new Entry(Long.parseLong(segments[1]), Long.parseLong(segments[2]), segments[3]));
+                } else if (segments.length > 4) {
+                    final Entry entry = new Entry(Long.parseLong(segments[1]), Long.parseLong(segments[2]),
+                            segments[3], segments[4], Arrays.asList(segments).subList(5, segments.length));
+                    reference(segments[0], entry);
+                    entries.put(segments[0], entry);
+                }
+            }
+        } finally {
+            IOUtil.close(reader);
+        }
+        persisted = true;
+    }
+
+    synchronized void write(final File file) throws IOException {
+        final File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp),
+                P2RepositoryIndex.UTF_8));
+        try {
+            for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writer.write(entry.getKey());
+                writer.write(SEPARATOR);
+                writer.write(String.valueOf(entry.getValue().size));
+                writer.write(SEPARATOR);
+                writer.write(String.valueOf(entry.getValue().modified));
+                writer.write(SEPARATOR);
+                writer.write(entry.getValue().digest);
+                if (entry.getValue().keys != null) {
+                    writer.write(SEPARATOR);
+                    writer.write(entry.getValue().root);
+                    for (final String key : entry.getValue().keys) {
+                        writer.write(SEPARATOR);
+                        writer.write(key);
+                    }
+                }
+                writer.write('\n');
+            }
+        } finally {
+            IOUtil.close(writer);
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not write " + file);
+            }
+        }
+        persisted = true;
+    }
+
+    private static boolean isBelow(final String path, final String subtree) {
+        return subtree == null || path.startsWith(subtree + "/");
+    }
+
+    private void reference(final String path, final Entry entry) {
+        if (entry.keys == null) {
+            return;
+        }
+        for (final String key : entry.keys) {
+            final String reference = referenceOf(path, entry.root, key);
+            final Integer count = references.get(reference);
+            references.put(reference, count == null ? 1 : count + 1);
+        }
+    }
+
+    private Set<String> release(final String path, final Entry entry) {
+        final Set<String> released = new HashSet<String>();
+        if (entry == null || entry.keys == null) {
+            return released;
+        }
+        for (final String key : entry.keys) {
+            final String reference = referenceOf(path, entry.root, key);
+            final Integer count = references.get(reference);
+            if (count == null || count <= 1) {
+                references.remove(reference);
+                released.add(key);
+            } else {
+                references.put(reference, count - 1);
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Artifacts and units are told apart by the kind of fragment, as their keys may look alike.
+     */
+    private static String referenceOf(final String path, final String root, final String key) {
+        return P2TychoRoutingTable.fragmentOf(path) + SEPARATOR + root + SEPARATOR + key;
+    }
+
+    static Entry describe(final File file) throws IOException {
+        return new Entry(file.length(), file.lastModified(), digest(file));
+    }
+
+    static String digest(final File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            IOUtil.close(in);
+        }
+        final byte[] bytes = digest.digest();
+        final char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    static class Entry {
+
+        final long size;
+
+        final long modified;
+
+        final String digest;
+
+        /**
+         * root of the p2 repository the fragment was aggregated into, null if the contributions are not known
+         */
+        final String root;
+
+        /**
+         * keys of the artifacts / units the fragment contributed, null if not known
+         */
+        final Collection<String> keys;
+
+        Entry(final long size, final long modified, final String digest) {
+            this(size, modified, digest, null, null);
+        }
+
+        Entry(final long size, final long modified, final String digest, final String root,
+                final Collection<String> keys) {
+            this.size = size;
+            this.modified = modified;
+            this.digest = digest;
+            this.root = root;
+            this.keys = keys == null ? null : Collections.unmodifiableList(new ArrayList<String>(keys));
+        }
+
+        /**
+         * @return this entry, recording what the fragment contributed to the p2 repository at given root
+         */
+        Entry contributing(final String root, final Collection<String> keys) {
+            return new Entry(size, modified, digest, root, keys);
+        }
+
+    }
+
+    static class Diff {
+
+        final List<String> added = new ArrayList<String>();
+
+        final List<String> changed = new ArrayList<String>();
+
+        final List<String> removed = new ArrayList<String>();
+
+        Collection<String> addedOrChanged() {
+            final List<String> paths = new ArrayList<String>(added);
+            paths.addAll(changed);
+            return paths;
+        }
+
+        boolean isEmpty() {
+            return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+        }
+
+    }
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import static com.qualitype.nexus.plugins.tycho.internal.NexusUtils.isHidden;
+import static com.qualitype.nexus.plugins.tycho.internal.P2TychoRoutingTable.isP2ArtifactsXML;
+import static com.qualitype.nexus.plugins.tycho.internal.P2TychoRoutingTable.isP2ContentXML;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.sonatype.scheduling.ProgressListener;
+
+/**
+ * Discovers Tycho p2 fragments (p2artifacts.xml / p2metadata.xml) below a directory, walking sub directories in
+ * parallel on given executor. Hidden directories (.nexus, .meta, .index, ...) are skipped as a whole and repository
+ * paths are built up while walking, so discovery costs one directory listing per directory and nothing per file that
+ * is not a fragment. The walk stops once the (optional) progress listener is canceled, which is told about every
+ * directory visited.
+ */
+class P2FragmentScanner {
+
+    private static final char SEPARATOR = '/';
+
+    private final Executor executor;
+
+    private final ProgressListener progress;
+
+    P2FragmentScanner(final Executor executor) {
+        this(executor, null);
+    }
+
+    P2FragmentScanner(final Executor executor, final ProgressListener progress) {
+        this.executor = executor;
+        this.progress = progress;
+    }
+
+    /**
+     * @return all fragments of the repository with given local storage base directory, by repository path and sorted
+     *         by it
+     */
+    Map<String, File> scan(final File baseDir) throws InterruptedException, ExecutionException {
+        return scan(baseDir, null);
+    }
+
+    /**
+     * @param subtree repository path to scan below ("/org/example", without trailing "/"), null to scan the whole
+     *            repository
+     * @return all fragments below given repository path, by repository path and sorted by it
+     * @throws CancellationException if the progress listener got canceled meanwhile
+     */
+    Map<String, File> scan(final File baseDir, final String subtree) throws InterruptedException,
+            ExecutionException {
+        if (isHidden(subtree)) {
+            return Collections.emptyMap();
+        }
+
+        final Walk walk = new Walk();
+        if (subtree == null) {
+            walk.submit(baseDir, "");
+        } else {
+            walk.submit(new File(baseDir, subtree.substring(1)), subtree);
+        }
+        walk.completed();
+        walk.done.await();
+        if (walk.failure.get() != null) {
+            throw new ExecutionException(walk.failure.get());
+        }
+        if (isCanceled()) {
+            throw new CancellationException();
+        }
+        return new LinkedHashMap<String, File>(walk.fragments);
+    }
+
+    private boolean isCanceled() {
+        return progress != null && progress.isCanceled();
+    }
+
+    private class Walk {
+
+        private final Map<String, File> fragments = new ConcurrentSkipListMap<String, File>();
+
+        // directories submitted but not visited yet, plus one held by the scan until the walk is started
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        void submit(final File directory, final String path) {
+            if (isCanceled()) {
+                return;
+            }
+            pending.incrementAndGet();
+            try {
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            if (failure.get() == null && !isCanceled()) {
+                                visit(directory, path);
+                            }
+                        } catch (final Throwable e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            completed();
+                        }
+                    }
+                });
+            } catch (final RuntimeException e) {
+                failure.compareAndSet(null, e);
+                completed();
+            }
+        }
+
+        private void visit(final File directory, final String path) {
+            final File[] files = directory.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (final File file : files) {
+                final String name = file.getName();
+                if (path.length() == 0 && isHidden(name)) {
+                    // hidden items all live below hidden top level directories
+                    continue;
+                }
+                if ((isP2ArtifactsXML(name) || isP2ContentXML(name)) && file.isFile()) {
+                    fragments.put(path + SEPARATOR + name, file);
+                } else if (file.isDirectory()) {
+                    submit(file, path + SEPARATOR + name);
+                }
+            }
+            if (progress != null) {
+                // directories are visited by several threads, listeners need not be thread safe
+                synchronized (progress) {
+                    progress.working(path.length() == 0 ? String.valueOf(SEPARATOR) : path, 1);
+                }
+            }
+        }
+
+        private void completed() {
+            if (pending.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+
+    }
+
+}
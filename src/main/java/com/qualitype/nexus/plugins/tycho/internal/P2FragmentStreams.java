@@ -0,0 +1,164 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Presents a Tycho generated p2 fragment (p2metadata.xml / p2artifacts.xml) as a complete p2 repository document. The
+ * files generated by Tycho do not frame their content in a {@code <repository>} element; when the first element of
+ * the stream is not a repository, the given header (and matching footer) are injected while streaming, replacing the
+ * XML declaration of the fragment. Complete repository documents are passed through unchanged.
+ */
+class P2FragmentStreams {
+
+    static final String METADATA_HEADER = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<?metadataRepository version='1.1.0'?>\n"
+            + "<repository name='temporary' type='org.eclipse.equinox.internal.p2.metadata.repository.LocalMetadataRepository' version='1'>\n";
+
+    static final String ARTIFACTS_HEADER = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<?artifactRepository version='1.1.0'?>\n"
+            + "<repository name='temporary' type='org.eclipse.equinox.p2.artifact.repository.simpleRepository' version='1'>\n";
+
+    private static final String FOOTER = "\n</repository>\n";
+
+    private static final String REPOSITORY = "repository";
+
+    // the first element is expected well within the first bytes of a fragment
+    private static final int PREFIX_SIZE = 4096;
+
+    private static final byte[] BOM = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+
+    private P2FragmentStreams() {
+    }
+
+    static InputStream wrap(final InputStream in, final String header) throws IOException {
+        final BufferedInputStream buffered = new BufferedInputStream(in, PREFIX_SIZE);
+        buffered.mark(PREFIX_SIZE);
+        final byte[] prefix = new byte[PREFIX_SIZE];
+        final int length = readFully(buffered, prefix);
+        buffered.reset();
+
+        final int firstElement = firstElement(prefix, length);
+        if (firstElement < 0 || isRepositoryElement(prefix, firstElement + 1, length)) {
+            return buffered;
+        }
+
+        skipFully(buffered, prologLength(prefix, length));
+        return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                new ByteArrayInputStream(header.getBytes(P2RepositoryIndex.UTF_8)), buffered,
+                new ByteArrayInputStream(FOOTER.getBytes(P2RepositoryIndex.UTF_8)))));
+    }
+
+    /**
+     * @return offset of the '<' starting the first element, -1 if there is none in the prefix
+     */
+    private static int firstElement(final byte[] prefix, final int length) {
+        int i = 0;
+        while (i < length - 1) {
+            if (prefix[i] == '<') {
+                final byte next = prefix[i + 1];
+                if (next == '?') {
+                    i = indexOf(prefix, length, i, "?>");
+                } else if (next == '!') {
+                    i = indexOf(prefix, length, i, ">");
+                } else {
+                    return i;
+                }
+                if (i < 0) {
+                    return -1;
+                }
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    private static boolean isRepositoryElement(final byte[] prefix, final int offset, final int length) {
+        final int end = offset + REPOSITORY.length();
+        return startsWith(prefix, offset, length, REPOSITORY)
+                && (end >= length || prefix[end] == '>' || prefix[end] == '/' || Character.isWhitespace(prefix[end]));
+    }
+
+    /**
+     * @return number of bytes of the byte order mark and XML declaration (if any)
+     */
+    private static int prologLength(final byte[] prefix, final int length) {
+        int offset = startsWith(prefix, 0, length, BOM) ? BOM.length : 0;
+        while (offset < length && Character.isWhitespace(prefix[offset])) {
+            offset++;
+        }
+        if (startsWith(prefix, offset, length, "<?xml")) {
+            final int end = indexOf(prefix, length, offset, "?>");
+            if (end >= 0) {
+                return end + 2;
+            }
+        }
+        return offset;
+    }
+
+    private static int indexOf(final byte[] prefix, final int length, final int from, final String token) {
+        for (int i = from; i < length; i++) {
+            if (startsWith(prefix, i, length, token)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(final byte[] prefix, final int offset, final int length, final String token) {
+        try {
+            return startsWith(prefix, offset, length, token.getBytes(P2RepositoryIndex.UTF_8));
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean startsWith(final byte[] prefix, final int offset, final int length, final byte[] token) {
+        if (offset + token.length > length) {
+            return false;
+        }
+        for (int i = 0; i < token.length; i++) {
+            if (prefix[offset + i] != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readFully(final InputStream in, final byte[] buffer) throws IOException {
+        int length = 0;
+        int read;
+        while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) > 0) {
+            length += read;
+        }
+        return length;
+    }
+
+    private static void skipFully(final InputStream in, final int count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            final long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                return;
+            }
+            remaining -= skipped;
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import static com.qualitype.nexus.plugins.tycho.internal.NexusUtils.retrieveFile;
+import static com.qualitype.nexus.plugins.tycho.internal.NexusUtils.retrieveItem;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.sonatype.nexus.proxy.ItemNotFoundException;
+import org.sonatype.nexus.proxy.ResourceStoreRequest;
+import org.sonatype.nexus.proxy.item.StorageItem;
+import org.sonatype.nexus.proxy.item.StorageLinkItem;
+import org.sonatype.nexus.proxy.repository.Repository;
+
+/**
+ * Reconciles the /plugins and /features links of aggregated p2 repositories in one batch. The links wanted (or no
+ * longer wanted) by the fragments are collected first and only then compared to the existing link items, so unchanged
+ * links are left alone, missing or outdated ones are (re)created and links are only deleted while they still point at
+ * the bundle of a removed fragment. Used for a single batch, not thread safe.
+ */
+class P2LinkReconciler {
+
+    private static final String PLUGINS = "/plugins/";
+
+    private static final String FEATURES = "/features/";
+
+    private final Repository repository;
+
+    private final Logger logger;
+
+    // link path -> bundle path
+    private final Map<String, String> wanted = new TreeMap<String, String>();
+
+    // paths of wanted links known to be in place already
+    private final Set<String> kept = new TreeSet<String>();
+
+    // link path -> bundle path the link should no longer point at
+    private final Map<String, String> unwanted = new TreeMap<String, String>();
+
+    private final Set<String> prunedRoots = new TreeSet<String>();
+
+    private int created;
+
+    private int deleted;
+
+    private int unchanged;
+
+    P2LinkReconciler(final Repository repository, final Logger logger) {
+        this.repository = repository;
+        this.logger = logger;
+    }
+
+    /**
+     * @param root root of the p2 repository the fragment is aggregated into
+     * @param fragmentPath repository path of the p2 artifacts fragment, deployed next to its bundle
+     * @param keys keys of (some of) the artifacts of the fragment
+     * @return the links (link path -> bundle path) the plug-ins and features among given artifacts need; binaries do
+     *         not get a link
+     */
+    static Map<String, String> linksOf(final String root, final String fragmentPath, final Collection<String> keys) {
+        final String bundlePath = fragmentPath.replace("-p2artifacts.xml", ".jar");
+        final Map<String, String> links = new LinkedHashMap<String, String>();
+        for (final String installableArtifact : keys) {
+            final String classifier = ArtifactDescriptorIndex.classifier(installableArtifact);
+            String subDirectory = null;
+            if (classifier.equals("osgi.bundle")) {
+                subDirectory = PLUGINS;
+            } else if (classifier.equals("org.eclipse.update.feature")) {
+                subDirectory = FEATURES;
+            }
+            if (subDirectory != null) {
+                links.put(root + subDirectory + ArtifactDescriptorIndex.id(installableArtifact) + "_"
+                        + ArtifactDescriptorIndex.version(installableArtifact) + ".jar", bundlePath);
+            }
+        }
+        return links;
+    }
+
+    void want(final Map<String, String> links) {
+        wanted.putAll(links);
+        kept.removeAll(links.keySet());
+        unwanted.keySet().removeAll(links.keySet());
+    }
+
+    /**
+     * Wants links that were reconciled before (ie. by an earlier reconciler), so they are neither checked again nor
+     * pruned. Links wanted with {@link #want(Map)} as well are checked.
+     */
+    void keep(final Map<String, String> links) {
+        for (final Map.Entry<String, String> link : links.entrySet()) {
+            if (!wanted.containsKey(link.getKey())) {
+                wanted.put(link.getKey(), link.getValue());
+                kept.add(link.getKey());
+            }
+        }
+        unwanted.keySet().removeAll(links.keySet());
+    }
+
+    void unwant(final Map<String, String> links) {
+        for (final Map.Entry<String, String> link : links.entrySet()) {
+            if (!wanted.containsKey(link.getKey())) {
+                unwanted.put(link.getKey(), link.getValue());
+            }
+        }
+    }
+
+    /**
+     * Makes {@link #reconcile()} also delete the links below the p2 repository at given root that are not wanted.
+     */
+    void prune(final String root) {
+        prunedRoots.add(root);
+    }
+
+    void reconcile() {
+        for (final Map.Entry<String, String> link : wanted.entrySet()) {
+            try {
+                if (kept.contains(link.getKey()) || link.getValue().equals(targetOf(link.getKey()))) {
+                    unchanged++;
+                } else {
+                    NexusUtils.createLink(repository, retrieveItem(repository, link.getValue()), link.getKey());
+                    created++;
+                }
+            } catch (final Exception e) {
+                logger.debug("Could not link [{}] to [{}]: {}",
+                        new Object[] { link.getKey(), link.getValue(), e.getMessage() });
+            }
+        }
+        for (final Map.Entry<String, String> link : unwanted.entrySet()) {
+            try {
+                // another fragment may have taken over the link meanwhile
+                if (link.getValue().equals(targetOf(link.getKey()))) {
+                    delete(link.getKey());
+                }
+            } catch (final Exception e) {
+                logger.debug("Could not delete link [{}]: {}", link.getKey(), e.getMessage());
+            }
+        }
+        for (final String root : prunedRoots) {
+            pruneDirectory(root + PLUGINS);
+            pruneDirectory(root + FEATURES);
+        }
+        logger.debug("Reconciled links of P2 repository [{}]: [{}] created, [{}] deleted, [{}] unchanged",
+                new Object[] { repository.getId(), created, deleted, unchanged });
+    }
+
+    /**
+     * @return number of links {@link #reconcile()} created (or redirected)
+     */
+    int created() {
+        return created;
+    }
+
+    /**
+     * @return number of links {@link #reconcile()} deleted
+     */
+    int deleted() {
+        return deleted;
+    }
+
+    private void pruneDirectory(final String directory) {
+        final String[] names;
+        try {
+            names = retrieveFile(repository, directory).list();
+        } catch (final Exception e) {
+            return;
+        }
+        if (names == null) {
+            return;
+        }
+        for (final String name : names) {
+            final String link = directory + name;
+            if (!wanted.containsKey(link)) {
+                try {
+                    if (targetOf(link) != null) {
+                        delete(link);
+                    }
+                } catch (final Exception e) {
+                    logger.debug("Could not delete link [{}]: {}", link, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return path of the item the link at given path points at, null if there is no link
+     */
+    private String targetOf(final String link) throws Exception {
+        final StorageItem item;
+        try {
+            // the local storage does not dereference links
+            item = repository.getLocalStorage().retrieveItem(repository, new ResourceStoreRequest(link));
+        } catch (final ItemNotFoundException e) {
+            return null;
+        }
+        if (item instanceof StorageLinkItem) {
+            return ((StorageLinkItem) item).getTarget().getPath();
+        }
+        return null;
+    }
+
+    private void delete(final String link) throws Exception {
+        repository.deleteItem(new ResourceStoreRequest(link));
+        deleted++;
+    }
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Publishes a new generation of exposed p2 repository files atomically. New versions are written to staging files next
+ * to the exposed ones (so on the same file system) and renamed over them on commit, so a reader always gets a complete
+ * file, either of the previous or of the new generation, without waiting for the writer.
+ */
+class P2PublishStage {
+
+    /**
+     * Repository property holding the generation of a published p2 repository document.
+     */
+    static final String P2_GENERATION = "p2.tycho.generation";
+
+    private static final String STAGING_SUFFIX = ".staging";
+
+    private final File directory;
+
+    private final long generation;
+
+    private final String qualifier;
+
+    // staging file -> exposed file, in commit order
+    private final Map<File, File> staged = new LinkedHashMap<File, File>();
+
+    P2PublishStage(final File directory, final long generation) {
+        this(directory, generation, null);
+    }
+
+    /**
+     * @param qualifier part of the staging file names, so a stage written without holding the lock of the exposed
+     *            files does not share them with a publication of the same generation; null for none
+     */
+    P2PublishStage(final File directory, final long generation, final String qualifier) {
+        this.directory = directory;
+        this.generation = generation;
+        this.qualifier = qualifier;
+    }
+
+    /**
+     * @return the generation following the one given index was published with (generations start at 1)
+     */
+    static long nextGeneration(final P2RepositoryIndex index) {
+        final String generation = index.getProperty(P2_GENERATION);
+        if (generation != null) {
+            try {
+                return Long.parseLong(generation) + 1;
+            } catch (final NumberFormatException e) {
+                // start over
+            }
+        }
+        return 1;
+    }
+
+    long generation() {
+        return generation;
+    }
+
+    /**
+     * @return the staging file to write the new version of the exposed file with given name to; files are swapped in
+     *         in the order they were staged
+     */
+    File stage(final String name) {
+        final File staging = new File(directory, "." + name + "." + generation
+                + (qualifier == null ? "" : "." + qualifier) + STAGING_SUFFIX);
+        staged.put(staging, new File(directory, name));
+        return staging;
+    }
+
+    /**
+     * Renames all staging files over the exposed ones.
+     */
+    void commit() throws IOException {
+        for (final Map.Entry<File, File> entry : staged.entrySet()) {
+            rename(entry.getKey(), entry.getValue());
+        }
+        staged.clear();
+    }
+
+    /**
+     * Deletes the staging files that were not (yet) renamed. Does nothing after a successful commit.
+     */
+    void abort() {
+        for (final File staging : staged.keySet()) {
+            staging.delete();
+        }
+        staged.clear();
+    }
+
+    private static void rename(final File from, final File to) throws IOException {
+        if (from.renameTo(to)) {
+            return;
+        }
+        // platforms that cannot rename over an existing file (ie. Windows) get a short window without it
+        if (!to.delete() || !from.renameTo(to)) {
+            throw new IOException(String.format("Could not publish [%s] as [%s]", from, to));
+        }
+    }
+
+}
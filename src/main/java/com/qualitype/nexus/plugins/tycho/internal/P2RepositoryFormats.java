@@ -0,0 +1,107 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+/**
+ * Compressed forms of the aggregated content.xml / artifacts.xml (content.jar / artifacts.jar and content.xml.xz /
+ * artifacts.xml.xz) and the p2.index advertising them to p2 clients.
+ */
+class P2RepositoryFormats {
+
+    static final String JAR_SUFFIX = ".jar";
+
+    static final String XZ_SUFFIX = ".xz";
+
+    static final String P2_INDEX = "p2.index";
+
+    /**
+     * Lets clients pick the xz compressed files first, falling back to the jar / xml ones ("!" stops the lookup).
+     */
+    static final String P2_INDEX_CONTENT = "version=1\n"
+            + "metadata.repository.factory.order=content.xml.xz,content.xml,!\n"
+            + "artifact.repository.factory.order=artifacts.xml.xz,artifacts.xml,!\n";
+
+    static final String COMPOSITE_P2_INDEX_CONTENT = "version=1\n"
+            + "metadata.repository.factory.order=compositeContent.xml,!\n"
+            + "artifact.repository.factory.order=compositeArtifacts.xml,!\n";
+
+    private P2RepositoryFormats() {
+    }
+
+    /**
+     * @return name of the jar form of given xml file name (ie. content.jar for content.xml)
+     */
+    static String jarName(final String xmlName) {
+        return xmlName.substring(0, xmlName.lastIndexOf('.')) + JAR_SUFFIX;
+    }
+
+    static String xzName(final String xmlName) {
+        return xmlName + XZ_SUFFIX;
+    }
+
+    /**
+     * Writes a jar containing given xml file as its only entry, named after the exposed xml file.
+     */
+    static void writeJar(final File xml, final String xmlName, final File jar) throws IOException {
+        final JarOutputStream out = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(jar)));
+        try {
+            out.putNextEntry(new ZipEntry(xmlName));
+            copy(xml, out);
+            out.closeEntry();
+        } finally {
+            IOUtil.close(out);
+        }
+    }
+
+    static void writeXz(final File xml, final File xz) throws IOException {
+        final XZOutputStream out = new XZOutputStream(new BufferedOutputStream(new FileOutputStream(xz)),
+                new LZMA2Options());
+        try {
+            copy(xml, out);
+        } finally {
+            IOUtil.close(out);
+        }
+    }
+
+    static void writeIndex(final File index, final String content) throws IOException {
+        final OutputStream out = new FileOutputStream(index);
+        try {
+            out.write(content.getBytes(P2RepositoryIndex.UTF_8));
+        } finally {
+            IOUtil.close(out);
+        }
+    }
+
+    private static void copy(final File file, final OutputStream out) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            IOUtil.copy(in, out);
+        } finally {
+            IOUtil.close(in);
+        }
+    }
+
+}
@@ -0,0 +1,766 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * In-memory image of a p2 repository document (content.xml / artifacts.xml). Entries (units, artifacts) are kept in
+ * their serialized XML form keyed by their identity, so fragments can be applied as cheap deltas and the document is
+ * only written out when it gets published. Once published, the serialized entries can be evicted: only their keys are
+ * kept and the next write streams them from the published document, merged with the entries changed since. A
+ * canonical hash of every entry is kept alongside it (evicted or not), to tell whether a fragment would change it.
+ */
+abstract class P2RepositoryIndex {
+
+    static final String UTF_8 = "UTF-8";
+
+    static final String P2_TIMESTAMP = "p2.timestamp";
+
+    private static final String REPOSITORY = "repository";
+
+    private static final String PROPERTIES = "properties";
+
+    private static final String PROPERTY = "property";
+
+    private static final String NEWLINE = "\n";
+
+    // value of the entries held by the published document only
+    private static final byte[] PUBLISHED = new byte[0];
+
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private final String containerElement;
+
+    private final String entryElement;
+
+    private final String fragmentHeader;
+
+    private String processingInstructionTarget;
+
+    private String processingInstructionData;
+
+    private final Map<String, String> repositoryAttributes = new LinkedHashMap<String, String>();
+
+    private final Map<String, String> properties = new LinkedHashMap<String, String>();
+
+    private final List<String> leadingElements = new ArrayList<String>();
+
+    private final List<String> trailingElements = new ArrayList<String>();
+
+    private final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+
+    // key -> canonical hash of the entry (see P2EntryDigest)
+    private final Map<String, byte[]> hashes = new HashMap<String, byte[]>();
+
+    private File published;
+
+    private long publishedLength;
+
+    private long publishedModified;
+
+    // keys of the evicted entries removed since, to apply them again onto a changed published document
+    private final Set<String> removedSincePublished = new HashSet<String>();
+
+    // byte ranges ({offset, length}) of the evicted entries in the published document, null if unknown
+    private Map<String, long[]> publishedRanges;
+
+    // byte ranges of the entries in the document written last, tracked once the index got evicted
+    private Map<String, long[]> writtenRanges;
+
+    private long writtenLength;
+
+    P2RepositoryIndex(final String containerElement, final String entryElement, final String fragmentHeader) {
+        this.containerElement = containerElement;
+        this.entryElement = entryElement;
+        this.fragmentHeader = fragmentHeader;
+    }
+
+    /**
+     * @return the identity of the entry the reader is positioned on (start element)
+     */
+    abstract String keyOf(XMLStreamReader reader);
+
+    int size() {
+        return entries.size();
+    }
+
+    boolean contains(final String key) {
+        return entries.containsKey(key);
+    }
+
+    Collection<String> keys() {
+        return Collections.unmodifiableCollection(entries.keySet());
+    }
+
+    /**
+     * @return the canonical hash of the entry with given key (see {@link P2EntryDigest}), null if there is none
+     */
+    byte[] hashOf(final String key) {
+        return hashes.get(key);
+    }
+
+    String getProperty(final String name) {
+        return properties.get(name);
+    }
+
+    void setProperty(final String name, final String value) {
+        properties.put(name, value);
+    }
+
+    /**
+     * Takes over everything but the entries (processing instruction, repository attributes, properties and other
+     * elements) from given index.
+     */
+    void copyHeader(final P2RepositoryIndex other) {
+        processingInstructionTarget = other.processingInstructionTarget;
+        processingInstructionData = other.processingInstructionData;
+        repositoryAttributes.clear();
+        repositoryAttributes.putAll(other.repositoryAttributes);
+        properties.clear();
+        properties.putAll(other.properties);
+        leadingElements.clear();
+        leadingElements.addAll(other.leadingElements);
+        trailingElements.clear();
+        trailingElements.addAll(other.trailingElements);
+    }
+
+    /**
+     * Adds (or replaces) all entries of given index, which must not have evicted entries.
+     */
+    void putAll(final P2RepositoryIndex other) {
+        if (other.published != null) {
+            throw new IllegalArgumentException("Entries of " + other.published + " are evicted");
+        }
+        entries.putAll(other.entries);
+        hashes.putAll(other.hashes);
+        removedSincePublished.removeAll(other.entries.keySet());
+    }
+
+    /**
+     * @return true if all entries of given index are part of this index with the same canonical content, so adding
+     *         them would not change it
+     */
+    boolean containsAll(final P2RepositoryIndex other) {
+        for (final String key : other.entries.keySet()) {
+            if (!P2EntryDigest.equal(hashes.get(key), other.hashes.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes all entries having the same identity as entries of given index.
+     */
+    void removeAll(final P2RepositoryIndex other) {
+        removeKeys(other.entries.keySet());
+    }
+
+    /**
+     * Removes the entries with given keys.
+     */
+    void removeKeys(final Collection<String> keys) {
+        for (final String key : keys) {
+            if (entries.remove(key) == PUBLISHED) {
+                removedSincePublished.add(key);
+            }
+            hashes.remove(key);
+        }
+    }
+
+    /**
+     * Starts an empty p2 repository with given name, for repositories that do not exist yet.
+     */
+    void initialize(final String name) throws IOException {
+        load(new ByteArrayInputStream((fragmentHeader + "</" + REPOSITORY + ">").getBytes(UTF_8)));
+        repositoryAttributes.put("name", name);
+    }
+
+    void load(final File file) throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            load(in);
+        } finally {
+            IOUtil.close(in);
+        }
+    }
+
+    /**
+     * Loads a published p2 repository document, keeping only the keys of its entries (as if they were evicted).
+     */
+    void loadKeys(final File file) throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            load(in, true);
+        } finally {
+            IOUtil.close(in);
+        }
+        evict(file);
+    }
+
+    /**
+     * Drops the serialized entries, as given document was just written from this index and holds them all. They are
+     * read back from it the next time the index is written, so given document must not be changed meanwhile but by
+     * publishing this index again. Entries are copied back as raw bytes if the byte ranges they were written to are
+     * known, they are parsed out of the document otherwise.
+     */
+    void evict(final File file) {
+        for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            entry.setValue(PUBLISHED);
+        }
+        published = file;
+        publishedLength = file.length();
+        publishedModified = file.lastModified();
+        publishedRanges = writtenRanges != null && writtenLength == publishedLength ? writtenRanges : null;
+        writtenRanges = null;
+        removedSincePublished.clear();
+    }
+
+    /**
+     * Takes the published document, changed (or deleted) by someone else since this index was evicted, as the new
+     * base: its entries replace the evicted ones and the entries added, replaced or removed since the eviction are
+     * applied onto them again. Everything but the entries is kept as it is in this index.
+     */
+    void rebase() throws IOException {
+        if (published == null) {
+            return;
+        }
+        final File file = published;
+        final Map<String, byte[]> changed = new LinkedHashMap<String, byte[]>();
+        final Map<String, byte[]> changedHashes = new HashMap<String, byte[]>();
+        for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            if (entry.getValue() != PUBLISHED) {
+                changed.put(entry.getKey(), entry.getValue());
+                changedHashes.put(entry.getKey(), hashes.get(entry.getKey()));
+            }
+        }
+        final Set<String> removed = new HashSet<String>(removedSincePublished);
+
+        entries.clear();
+        hashes.clear();
+        published = null;
+        publishedRanges = null;
+        writtenRanges = null;
+        removedSincePublished.clear();
+        if (file.isFile()) {
+            final InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                final XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+                try {
+                    while (reader.hasNext()) {
+                        if (reader.next() == XMLStreamConstants.START_ELEMENT
+                                && containerElement.equals(reader.getLocalName())) {
+                            readEntries(reader, true);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (final XMLStreamException e) {
+                throw new IOException("Could not parse p2 repository: " + e.getMessage(), e);
+            } finally {
+                IOUtil.close(in);
+            }
+            published = file;
+            publishedLength = file.length();
+            publishedModified = file.lastModified();
+        }
+        entries.putAll(changed);
+        hashes.putAll(changedHashes);
+        entries.keySet().removeAll(removed);
+        hashes.keySet().removeAll(removed);
+    }
+
+    /**
+     * Loads a p2 repository document or a (Tycho generated) fragment lacking the repository element.
+     */
+    void loadFragment(final File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            load(P2FragmentStreams.wrap(in, fragmentHeader));
+        } finally {
+            IOUtil.close(in);
+        }
+    }
+
+    void load(final InputStream in) throws IOException {
+        load(in, false);
+    }
+
+    private void load(final InputStream in, final boolean keysOnly) throws IOException {
+        try {
+            final XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                read(reader, keysOnly);
+            } finally {
+                reader.close();
+            }
+        } catch (final XMLStreamException e) {
+            throw new IOException("Could not parse p2 repository: " + e.getMessage(), e);
+        }
+    }
+
+    void write(final File file) throws IOException {
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            write(out);
+        } finally {
+            IOUtil.close(out);
+        }
+    }
+
+    void write(final OutputStream out) throws IOException {
+        final StringBuilder header = new StringBuilder();
+        header.append("<?xml version='1.0' encoding='UTF-8'?>").append(NEWLINE);
+        if (processingInstructionTarget != null) {
+            header.append("<?").append(processingInstructionTarget);
+            if (processingInstructionData != null) {
+                header.append(' ').append(processingInstructionData);
+            }
+            header.append("?>").append(NEWLINE);
+        }
+        header.append('<').append(REPOSITORY);
+        appendAttributes(header, repositoryAttributes);
+        header.append('>').append(NEWLINE);
+        header.append("  <").append(PROPERTIES).append(" size='").append(properties.size()).append("'>")
+                .append(NEWLINE);
+        for (final Map.Entry<String, String> property : properties.entrySet()) {
+            header.append("    <").append(PROPERTY).append(" name='").append(escape(property.getKey()))
+                    .append("' value='").append(escape(property.getValue())).append("'/>").append(NEWLINE);
+        }
+        header.append("  </").append(PROPERTIES).append('>').append(NEWLINE);
+        for (final String element : leadingElements) {
+            header.append("  ").append(element).append(NEWLINE);
+        }
+        header.append("  <").append(containerElement).append(" size='").append(entries.size()).append("'>");
+        final byte[] headerBytes = header.toString().getBytes(UTF_8);
+        out.write(headerBytes);
+        long position = headerBytes.length;
+
+        final byte[] indent = (NEWLINE + "    ").getBytes(UTF_8);
+        final Map<String, long[]> ranges = published == null ? null : new HashMap<String, long[]>();
+        final PublishedEntries publishedEntries = new PublishedEntries();
+        try {
+            for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                out.write(indent);
+                position += indent.length;
+                final long length;
+                if (entry.getValue() == PUBLISHED) {
+                    length = publishedEntries.copy(entry.getKey(), out);
+                } else {
+                    out.write(entry.getValue());
+                    length = entry.getValue().length;
+                }
+                if (ranges != null) {
+                    ranges.put(entry.getKey(), new long[] { position, length });
+                }
+                position += length;
+            }
+        } finally {
+            publishedEntries.close();
+        }
+
+        final StringBuilder footer = new StringBuilder();
+        footer.append(NEWLINE).append("  </").append(containerElement).append('>').append(NEWLINE);
+        for (final String element : trailingElements) {
+            footer.append("  ").append(element).append(NEWLINE);
+        }
+        footer.append("</").append(REPOSITORY).append('>').append(NEWLINE);
+        final byte[] footerBytes = footer.toString().getBytes(UTF_8);
+        out.write(footerBytes);
+        out.flush();
+        writtenRanges = ranges;
+        writtenLength = position + footerBytes.length;
+    }
+
+    private void read(final XMLStreamReader reader, final boolean keysOnly) throws XMLStreamException {
+        boolean entriesRead = false;
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.PROCESSING_INSTRUCTION && processingInstructionTarget == null) {
+                processingInstructionTarget = reader.getPITarget();
+                processingInstructionData = reader.getPIData();
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                final String name = reader.getLocalName();
+                if (REPOSITORY.equals(name)) {
+                    repositoryAttributes.clear();
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        repositoryAttributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                    }
+                } else if (PROPERTIES.equals(name)) {
+                    readProperties(reader);
+                } else if (containerElement.equals(name)) {
+                    readEntries(reader, keysOnly);
+                    entriesRead = true;
+                } else if (entriesRead) {
+                    trailingElements.add(copyElement(reader));
+                } else {
+                    leadingElements.add(copyElement(reader));
+                }
+            }
+        }
+    }
+
+    private void readProperties(final XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                if (PROPERTY.equals(reader.getLocalName())) {
+                    properties.put(reader.getAttributeValue(null, "name"), reader.getAttributeValue(null, "value"));
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private void readEntries(final XMLStreamReader reader, final boolean keysOnly) throws XMLStreamException {
+        final P2EntryDigest digest = new P2EntryDigest();
+        while (true) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return;
+            }
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (entryElement.equals(reader.getLocalName())) {
+                    final String key = keyOf(reader);
+                    if (keysOnly) {
+                        walkElement(reader, null, digest);
+                        entries.put(key, PUBLISHED);
+                    } else {
+                        entries.put(key, copyElementBytes(reader, digest));
+                    }
+                    hashes.put(key, digest.finish());
+                } else {
+                    skipElement(reader);
+                }
+            }
+        }
+    }
+
+    /**
+     * Skips the element the reader is positioned on (start element), leaving it positioned on the matching end element.
+     */
+    private static void skipElement(final XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static String copyElement(final XMLStreamReader reader) throws XMLStreamException {
+        try {
+            return new String(copyElementBytes(reader), UTF_8);
+        } catch (final IOException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    /**
+     * Serializes the element the reader is positioned on (start element), including all its children. The reader is
+     * left positioned on the matching end element.
+     */
+    private static byte[] copyElementBytes(final XMLStreamReader reader) throws XMLStreamException {
+        return copyElementBytes(reader, null);
+    }
+
+    /**
+     * @param digest (optional) digest to feed with the element
+     */
+    private static byte[] copyElementBytes(final XMLStreamReader reader, final P2EntryDigest digest)
+            throws XMLStreamException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(512);
+        final XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(buffer, UTF_8);
+        walkElement(reader, writer, digest);
+        writer.flush();
+        writer.close();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Passes the element the reader is positioned on (start element), including all its children, to given (optional)
+     * writer and digest. The reader is left positioned on the matching end element.
+     */
+    private static void walkElement(final XMLStreamReader reader, final XMLStreamWriter writer,
+            final P2EntryDigest digest) throws XMLStreamException {
+        int depth = 0;
+        while (true) {
+            switch (reader.getEventType()) {
+            case XMLStreamConstants.START_ELEMENT:
+                if (writer != null) {
+                    writer.writeStartElement(reader.getLocalName());
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                    }
+                }
+                if (digest != null) {
+                    digest.startElement(reader);
+                }
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                if (writer != null) {
+                    writer.writeEndElement();
+                }
+                if (digest != null) {
+                    digest.endElement();
+                }
+                depth--;
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.SPACE:
+                if (writer != null) {
+                    writer.writeCharacters(reader.getText());
+                }
+                if (digest != null) {
+                    digest.text(reader.getText());
+                }
+                break;
+            case XMLStreamConstants.CDATA:
+                if (writer != null) {
+                    writer.writeCData(reader.getText());
+                }
+                if (digest != null) {
+                    digest.text(reader.getText());
+                }
+                break;
+            default:
+                break;
+            }
+            if (depth == 0) {
+                break;
+            }
+            reader.next();
+        }
+    }
+
+    private static void appendAttributes(final StringBuilder builder, final Map<String, String> attributes) {
+        for (final Map.Entry<String, String> attribute : attributes.entrySet()) {
+            builder.append(' ').append(attribute.getKey()).append("='").append(escape(attribute.getValue()))
+                    .append('\'');
+        }
+    }
+
+    static String escape(final String value) {
+        if (value == null) {
+            return "";
+        }
+        final StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case '&':
+                builder.append("&amp;");
+                break;
+            case '<':
+                builder.append("&lt;");
+                break;
+            case '>':
+                builder.append("&gt;");
+                break;
+            case '\'':
+                builder.append("&apos;");
+                break;
+            case '"':
+                builder.append("&quot;");
+                break;
+            default:
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    static String key(final String... parts) {
+        final StringBuilder builder = new StringBuilder();
+        for (final String part : parts) {
+            if (builder.length() > 0) {
+                builder.append('/');
+            }
+            builder.append(part);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Copies evicted entries back from the published document, in one forward pass: evicted entries keep the order
+     * they were published in, entries changed since are kept in memory.
+     */
+    private class PublishedEntries {
+
+        private InputStream in;
+
+        // position of the raw stream
+        private long offset;
+
+        private byte[] buffer;
+
+        private XMLStreamReader reader;
+
+        /**
+         * @return number of bytes copied
+         */
+        long copy(final String key, final OutputStream out) throws IOException {
+            if (publishedRanges == null) {
+                final byte[] entry = parse(key);
+                out.write(entry);
+                return entry.length;
+            }
+            final long[] range = publishedRanges.get(key);
+            if (range == null || range[0] < offset) {
+                throw new PublishedDocumentChangedException(String.format("Entry [%s] not found in [%s]", key,
+                        published));
+            }
+            if (in == null) {
+                in = open();
+            }
+            skip(range[0] - offset);
+            if (buffer == null) {
+                buffer = new byte[8192];
+            }
+            long remaining = range[1];
+            while (remaining > 0) {
+                final int read = in.read(buffer, 0, (int) Math.min(remaining, buffer.length));
+                if (read < 0) {
+                    throw new PublishedDocumentChangedException(String.format("Entry [%s] not found in [%s]", key,
+                            published));
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+            offset = range[0] + range[1];
+            return range[1];
+        }
+
+        private void skip(final long bytes) throws IOException {
+            long remaining = bytes;
+            while (remaining > 0) {
+                final long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    throw new PublishedDocumentChangedException(String.format("[%s] is shorter than published",
+                            published));
+                }
+                remaining -= skipped;
+            }
+        }
+
+        private byte[] parse(final String key) throws IOException {
+            try {
+                if (reader == null) {
+                    in = open();
+                    reader = INPUT_FACTORY.createXMLStreamReader(in);
+                    while (!(reader.next() == XMLStreamConstants.START_ELEMENT && containerElement.equals(reader
+                            .getLocalName()))) {
+                        if (!reader.hasNext()) {
+                            throw new PublishedDocumentChangedException(String.format("No %s found in [%s]",
+                                    containerElement, published));
+                        }
+                    }
+                }
+                while (true) {
+                    final int event = reader.next();
+                    if (event == XMLStreamConstants.END_ELEMENT || event == XMLStreamConstants.END_DOCUMENT) {
+                        throw new PublishedDocumentChangedException(String.format("Entry [%s] not found in [%s]",
+                                key, published));
+                    }
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        if (entryElement.equals(reader.getLocalName()) && key.equals(keyOf(reader))) {
+                            return copyElementBytes(reader);
+                        }
+                        skipElement(reader);
+                    }
+                }
+            } catch (final XMLStreamException e) {
+                throw new IOException("Could not read back p2 repository: " + e.getMessage(), e);
+            }
+        }
+
+        private InputStream open() throws IOException {
+            if (published.length() != publishedLength || published.lastModified() != publishedModified) {
+                throw new PublishedDocumentChangedException(String.format("[%s] changed since it was published",
+                        published));
+            }
+            return new BufferedInputStream(new FileInputStream(published));
+        }
+
+        void close() {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final XMLStreamException e) {
+                    // closing the stream is what matters
+                }
+            }
+            IOUtil.close(in);
+        }
+
+    }
+
+    /**
+     * Thrown when writing an evicted index that can no longer read its entries back from the published document, as
+     * that got changed by someone else. See {@link P2RepositoryIndex#rebase()}.
+     */
+    static class PublishedDocumentChangedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        PublishedDocumentChangedException(final String message) {
+            super(message);
+        }
+
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        return factory;
+    }
+
+}
@@ -0,0 +1,127 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import static org.sonatype.nexus.plugins.p2.repository.P2Constants.P2_REPOSITORY_ROOT_PATH;
+
+import com.qualitype.nexus.plugins.tycho.P2TychoRepositoryAggregatorConfiguration;
+
+/**
+ * Decides which p2 repository (identified by its root path) a Tycho fragment is aggregated into. Either all fragments
+ * go into the p2 repository at {@code /.meta/p2} or each one goes into a child repository (per build or per shard)
+ * below it, in which case {@code /.meta/p2} is a composite repository of those children.
+ */
+abstract class P2RepositoryLayout {
+
+    static final String BUILDS_PATH = P2_REPOSITORY_ROOT_PATH + "/builds";
+
+    static final String SHARDS_PATH = P2_REPOSITORY_ROOT_PATH + "/shards";
+
+    static final P2RepositoryLayout MONOLITHIC = new P2RepositoryLayout() {
+
+        @Override
+        String rootOf(final String fragmentPath) {
+            return P2_REPOSITORY_ROOT_PATH;
+        }
+
+        @Override
+        boolean isComposite() {
+            return false;
+        }
+    };
+
+    /**
+     * One child repository per deployed build, mirroring the directory (GAV) the fragment was deployed to.
+     */
+    static final P2RepositoryLayout COMPOSITE = new P2RepositoryLayout() {
+
+        @Override
+        String rootOf(final String fragmentPath) {
+            return BUILDS_PATH + fragmentPath.substring(0, Math.max(0, fragmentPath.lastIndexOf('/')));
+        }
+
+        @Override
+        boolean isComposite() {
+            return true;
+        }
+    };
+
+    static P2RepositoryLayout of(final P2TychoRepositoryAggregatorConfiguration configuration) {
+        if (P2TychoRepositoryAggregatorConfiguration.COMPOSITE.equals(configuration.aggregationMode())) {
+            return COMPOSITE;
+        }
+        if (P2TychoRepositoryAggregatorConfiguration.SHARDED.equals(configuration.aggregationMode())) {
+            return sharded(configuration.shardCount());
+        }
+        return MONOLITHIC;
+    }
+
+    /**
+     * A fixed number of shard repositories, fragments being assigned by the hash of their Maven groupId so all builds
+     * of a group end up in the same shard.
+     */
+    static P2RepositoryLayout sharded(final int shardCount) {
+        return new P2RepositoryLayout() {
+
+            @Override
+            String rootOf(final String fragmentPath) {
+                final int shard = (groupIdOf(fragmentPath).hashCode() & Integer.MAX_VALUE) % shardCount;
+                return SHARDS_PATH + "/" + shard;
+            }
+
+            @Override
+            boolean isComposite() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return groupId of a fragment deployed to a Maven layout (/group/path/artifactId/version/file), or its directory
+     *         if it is not deep enough
+     */
+    static String groupIdOf(final String fragmentPath) {
+        final String[] segments = fragmentPath.substring(fragmentPath.startsWith("/") ? 1 : 0).split("/");
+        final int groupSegments = segments.length > 3 ? segments.length - 3 : segments.length - 1;
+        final StringBuilder groupId = new StringBuilder();
+        for (int i = 0; i < groupSegments; i++) {
+            if (i > 0) {
+                groupId.append('.');
+            }
+            groupId.append(segments[i]);
+        }
+        return groupId.toString();
+    }
+
+    /**
+     * @return root path of the p2 repository given fragment (repository path) is aggregated into
+     */
+    abstract String rootOf(String fragmentPath);
+
+    /**
+     * @return true if the p2 repository at {@code /.meta/p2} is a composite of the repositories fragments are
+     *         aggregated into
+     */
+    abstract boolean isComposite();
+
+    /**
+     * @return location of a child repository, relative to the composite repository
+     */
+    static String childLocation(final String root) {
+        return root.substring(P2_REPOSITORY_ROOT_PATH.length() + 1);
+    }
+
+    static String childRoot(final String location) {
+        return P2_REPOSITORY_ROOT_PATH + "/" + location;
+    }
+
+}
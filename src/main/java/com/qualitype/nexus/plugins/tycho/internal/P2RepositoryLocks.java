@@ -0,0 +1,240 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import static org.sonatype.nexus.plugins.p2.repository.P2Constants.P2_REPOSITORY_ROOT_PATH;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.sonatype.nexus.proxy.access.Action;
+import org.sonatype.nexus.proxy.item.RepositoryItemUid;
+import org.sonatype.nexus.proxy.repository.Repository;
+
+/**
+ * Independent lock domains of an aggregated p2 repository, so work on artifacts, content and links of the same
+ * repository does not serialize. Domains are always acquired in their declaration order to avoid deadlocks. The time
+ * spent waiting for and holding each domain is recorded, per repository and over all repositories.
+ */
+@Named
+@Singleton
+public class P2RepositoryLocks {
+
+    enum Domain {
+
+        /**
+         * artifacts.xml (and its compressed forms) of all p2 repositories of a repository
+         */
+        ARTIFACTS,
+
+        /**
+         * the /plugins and /features link trees
+         */
+        LINKS,
+
+        /**
+         * content.xml (and its compressed forms) of all p2 repositories of a repository
+         */
+        CONTENT,
+
+        /**
+         * the fragment manifest and the composite repository
+         */
+        STATE
+
+    }
+
+    private static final String LOCKS_PATH = P2_REPOSITORY_ROOT_PATH + "/.locks/";
+
+    // waits longer than this are logged
+    private static final long SLOW_WAIT_MILLIS = 1000;
+
+    @Inject
+    private Logger logger;
+
+    private final Map<Domain, LockStatistics> statistics;
+
+    private final ConcurrentMap<String, Map<Domain, LockStatistics>> repositoryStatistics;
+
+    public P2RepositoryLocks() {
+        statistics = newStatistics();
+        repositoryStatistics = new ConcurrentHashMap<String, Map<Domain, LockStatistics>>();
+    }
+
+    /**
+     * Acquires given domains (in declaration order) of a repository.
+     * @return the held locks, to be released with {@link Held#unlock()}
+     */
+    Held lock(final Repository repository, final Domain... domains) {
+        final Domain[] ordered = domains.clone();
+        Arrays.sort(ordered);
+        final Map<Domain, LockStatistics> ofRepository = statistics(repository.getId());
+        final Held held = new Held();
+        try {
+            for (final Domain domain : ordered) {
+                final RepositoryItemUid uid = repository.createUid(LOCKS_PATH + domain.name().toLowerCase());
+                final long start = System.nanoTime();
+                uid.getLock().lock(Action.update);
+                final long acquired = System.nanoTime();
+                held.add(uid, acquired, statistics.get(domain), ofRepository.get(domain));
+                final long waited = acquired - start;
+                statistics.get(domain).recordWait(waited);
+                ofRepository.get(domain).recordWait(waited);
+                if (waited / 1000000 >= SLOW_WAIT_MILLIS) {
+                    logger.debug("Waited [{}] ms for [{}] lock of P2 repository [{}]", new Object[] {
+                            waited / 1000000, domain, repository.getId() });
+                }
+            }
+        } catch (final RuntimeException e) {
+            held.unlock();
+            throw e;
+        }
+        return held;
+    }
+
+    Held lockAll(final Repository repository) {
+        return lock(repository, Domain.values());
+    }
+
+    /**
+     * @return wait statistics per lock domain, over all repositories
+     */
+    Map<Domain, LockStatistics> statistics() {
+        return statistics;
+    }
+
+    /**
+     * @return wait and hold statistics per lock domain of given repository
+     */
+    Map<Domain, LockStatistics> statistics(final String repositoryId) {
+        Map<Domain, LockStatistics> ofRepository = repositoryStatistics.get(repositoryId);
+        if (ofRepository == null) {
+            final Map<Domain, LockStatistics> created = newStatistics();
+            ofRepository = repositoryStatistics.putIfAbsent(repositoryId, created);
+            if (ofRepository == null) {
+                ofRepository = created;
+            }
+        }
+        return ofRepository;
+    }
+
+    private static Map<Domain, LockStatistics> newStatistics() {
+        final Map<Domain, LockStatistics> map = new EnumMap<Domain, LockStatistics>(Domain.class);
+        for (final Domain domain : Domain.values()) {
+            map.put(domain, new LockStatistics());
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    static class Held {
+
+        private final List<RepositoryItemUid> uids = new ArrayList<RepositoryItemUid>();
+
+        private final List<Long> acquired = new ArrayList<Long>();
+
+        private final List<LockStatistics[]> statistics = new ArrayList<LockStatistics[]>();
+
+        private void add(final RepositoryItemUid uid, final long acquiredAt, final LockStatistics... recordTo) {
+            uids.add(uid);
+            acquired.add(acquiredAt);
+            statistics.add(recordTo);
+        }
+
+        /**
+         * Releases the held locks, in reverse acquisition order.
+         */
+        void unlock() {
+            for (int i = uids.size() - 1; i >= 0; i--) {
+                uids.get(i).getLock().unlock();
+                final long held = System.nanoTime() - acquired.get(i);
+                for (final LockStatistics recordTo : statistics.get(i)) {
+                    recordTo.recordHold(held);
+                }
+            }
+            uids.clear();
+            acquired.clear();
+            statistics.clear();
+        }
+
+    }
+
+    static class LockStatistics {
+
+        private final AtomicLong acquisitions = new AtomicLong();
+
+        private final AtomicLong waitNanos = new AtomicLong();
+
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        private final AtomicLong holdNanos = new AtomicLong();
+
+        private final AtomicLong maxHoldNanos = new AtomicLong();
+
+        void recordWait(final long waited) {
+            acquisitions.incrementAndGet();
+            waitNanos.addAndGet(waited);
+            max(maxWaitNanos, waited);
+        }
+
+        void recordHold(final long held) {
+            holdNanos.addAndGet(held);
+            max(maxHoldNanos, held);
+        }
+
+        private static void max(final AtomicLong max, final long value) {
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        long acquisitions() {
+            return acquisitions.get();
+        }
+
+        long waitMillis() {
+            return waitNanos.get() / 1000000;
+        }
+
+        long maxWaitMillis() {
+            return maxWaitNanos.get() / 1000000;
+        }
+
+        long holdMillis() {
+            return holdNanos.get() / 1000000;
+        }
+
+        long maxHoldMillis() {
+            return maxHoldNanos.get() / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("acquisitions=%d, wait=%dms, maxWait=%dms, hold=%dms, maxHold=%dms", acquisitions(),
+                    waitMillis(), maxWaitMillis(), holdMillis(), maxHoldMillis());
+        }
+
+    }
+
+}
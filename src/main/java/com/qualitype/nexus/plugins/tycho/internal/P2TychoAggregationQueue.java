@@ -0,0 +1,221 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.sonatype.nexus.proxy.events.EventInspector;
+import org.sonatype.nexus.proxy.events.NexusStoppedEvent;
+import org.sonatype.nexus.proxy.item.StorageItem;
+import org.sonatype.plexus.appevents.Event;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.qualitype.nexus.plugins.tycho.P2TychoRepositoryAggregator;
+import com.qualitype.nexus.plugins.tycho.P2TychoRepositoryAggregatorConfiguration;
+
+/**
+ * Collects p2 fragment events per repository and hands them over to the aggregator in batches, on background workers.
+ * A batch is aggregated (and published) once no event arrived for the configured coalescing window of a repository,
+ * or once the batch waited for the configured maximum delay; events for the same path supersede each other. Events
+ * arriving after Nexus stopped are left to the next rebuild.
+ */
+@Named
+@Singleton
+public class P2TychoAggregationQueue implements EventInspector {
+
+    static final String WORKERS_PROPERTY = "p2.tycho.aggregator.workers";
+
+    private static final long SHUTDOWN_TIMEOUT = 60;
+
+    @Inject
+    private Logger logger;
+
+    private final P2TychoRepositoryAggregator p2RepositoryAggregator;
+
+    private final P2AggregationMetrics metrics;
+
+    private final ScheduledExecutorService executor;
+
+    private final ConcurrentMap<String, RepositoryQueue> queues;
+
+    @Inject
+    public P2TychoAggregationQueue(final P2TychoRepositoryAggregator p2RepositoryAggregator,
+            final P2AggregationMetrics metrics) {
+        this.p2RepositoryAggregator = p2RepositoryAggregator;
+        this.metrics = metrics;
+        executor = new ScheduledThreadPoolExecutor(Integer.getInteger(WORKERS_PROPERTY, 2),
+                new ThreadFactoryBuilder().setNameFormat("p2-tycho-aggregator-%d").setDaemon(true).build());
+        queues = new ConcurrentHashMap<String, RepositoryQueue>();
+    }
+
+    public void stored(final StorageItem item) {
+        enqueue(item, false);
+    }
+
+    public void deleted(final StorageItem item) {
+        enqueue(item, true);
+    }
+
+    /**
+     * @return number of fragment events waiting to be aggregated for given repository
+     */
+    int backlog(final String repositoryId) {
+        final RepositoryQueue queue = queues.get(repositoryId);
+        return queue == null ? 0 : queue.size();
+    }
+
+    @Override
+    public boolean accepts(final Event<?> evt) {
+        return evt instanceof NexusStoppedEvent;
+    }
+
+    @Override
+    public void inspect(final Event<?> evt) {
+        if (!accepts(evt)) {
+            return;
+        }
+        // already scheduled batches are still executed after shutdown
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                logger.warn("P2 repository aggregation did not finish within {} seconds", SHUTDOWN_TIMEOUT);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueue(final StorageItem item, final boolean deleted) {
+        final P2TychoRepositoryAggregatorConfiguration configuration = p2RepositoryAggregator.getConfiguration(item
+                .getRepositoryId());
+        if (configuration == null) {
+            return;
+        }
+        RepositoryQueue queue = queues.get(item.getRepositoryId());
+        if (queue == null) {
+            final RepositoryQueue created = new RepositoryQueue(item.getRepositoryId());
+            queue = queues.putIfAbsent(item.getRepositoryId(), created);
+            if (queue == null) {
+                queue = created;
+            }
+        }
+        queue.add(item, deleted, configuration.coalescingWindow(), configuration.coalescingMaxDelay());
+    }
+
+    private class RepositoryQueue implements Runnable {
+
+        private final String repositoryId;
+
+        private final Map<String, StorageItem> stored = new LinkedHashMap<String, StorageItem>();
+
+        private final Map<String, StorageItem> deleted = new LinkedHashMap<String, StorageItem>();
+
+        // System.nanoTime() the batch is due at, pushed back by every event up to the latest
+        private long due;
+
+        private long latest;
+
+        private boolean scheduled;
+
+        RepositoryQueue(final String repositoryId) {
+            this.repositoryId = repositoryId;
+        }
+
+        synchronized int size() {
+            return stored.size() + deleted.size();
+        }
+
+        synchronized void add(final StorageItem item, final boolean isDeleted, final long window,
+                final long maxDelay) {
+            final long now = System.nanoTime();
+            if (size() == 0) {
+                // first event of a batch
+                latest = now + TimeUnit.MILLISECONDS.toNanos(maxDelay);
+            }
+            due = Math.min(now + TimeUnit.MILLISECONDS.toNanos(window), latest);
+            // keep only the last event per path
+            stored.remove(item.getPath());
+            deleted.remove(item.getPath());
+            (isDeleted ? deleted : stored).put(item.getPath(), item);
+            metrics.of(repositoryId).backlog(size());
+            if (!scheduled) {
+                schedule();
+            }
+        }
+
+        @Override
+        public void run() {
+            final List<StorageItem> storedBatch;
+            final List<StorageItem> deletedBatch;
+            synchronized (this) {
+                final long remaining = due - System.nanoTime();
+                if (remaining > 0 && !executor.isShutdown()) {
+                    // events arrived since this run was scheduled
+                    schedule();
+                    return;
+                }
+                storedBatch = new ArrayList<StorageItem>(stored.values());
+                deletedBatch = new ArrayList<StorageItem>(deleted.values());
+                stored.clear();
+                deleted.clear();
+                metrics.of(repositoryId).backlog(0);
+            }
+            try {
+                logger.debug("Aggregating [{}] stored and [{}] deleted p2 fragments of repository [{}]", new Object[] {
+                        storedBatch.size(), deletedBatch.size(), repositoryId });
+                p2RepositoryAggregator.updateP2Repository(repositoryId, storedBatch, deletedBatch);
+            } catch (final RuntimeException e) {
+                logger.warn(String.format("Could not aggregate p2 fragments of repository [%s] due to [%s]",
+                        repositoryId, e.getMessage()), e);
+            } finally {
+                synchronized (this) {
+                    scheduled = false;
+                    // events arrived while aggregating get their own batch
+                    if (size() > 0) {
+                        schedule();
+                    }
+                }
+            }
+        }
+
+        private void schedule() {
+            try {
+                executor.schedule(this, Math.max(0, due - System.nanoTime()), TimeUnit.NANOSECONDS);
+                scheduled = true;
+            } catch (final RejectedExecutionException e) {
+                // Nexus stopped, the next rebuild picks the fragments up from storage
+                logger.warn("Skipping aggregation of [{}] p2 fragment events of repository [{}] as Nexus is stopping, "
+                        + "rebuild its P2 repository to apply them", size(), repositoryId);
+                stored.clear();
+                deleted.clear();
+                metrics.of(repositoryId).backlog(0);
+                scheduled = false;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,187 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+
+/**
+ * Aggregation statistics of one repository, registered as
+ * {@code com.qualitype.nexus.plugins.tycho:type=P2TychoRepositoryAggregator,repository=<id>} while aggregation is
+ * enabled for it. Times are in milliseconds, counts are since the plugin was started.
+ */
+public interface P2TychoAggregatorMXBean {
+
+    OperationTimes getUpdateMetadata();
+
+    OperationTimes getRemoveMetadata();
+
+    OperationTimes getUpdateArtifacts();
+
+    OperationTimes getRemoveArtifacts();
+
+    OperationTimes getRebuild();
+
+    /**
+     * @return wait and hold times per lock domain (ARTIFACTS, LINKS, CONTENT, STATE)
+     */
+    Map<String, LockTimes> getLocks();
+
+    /**
+     * @return size of the published content.xml files (all p2 repositories of a composite)
+     */
+    long getContentBytes();
+
+    long getUnitCount();
+
+    /**
+     * @return size of the published artifacts.xml files (all p2 repositories of a composite)
+     */
+    long getArtifactsBytes();
+
+    long getArtifactCount();
+
+    long getLinksCreated();
+
+    long getLinksDeleted();
+
+    /**
+     * @return stored fragments that were only recorded, as they would not have changed the p2 repository
+     */
+    long getUnchangedFragments();
+
+    /**
+     * @return fragment events waiting to be aggregated
+     */
+    int getBacklog();
+
+    /**
+     * Count, failures and latency histogram of an operation applied per fragment (or per rebuild).
+     */
+    class OperationTimes {
+
+        private final long count;
+
+        private final long failures;
+
+        private final long totalMillis;
+
+        private final long maxMillis;
+
+        private final long upTo10ms;
+
+        private final long upTo100ms;
+
+        private final long upTo1s;
+
+        private final long upTo10s;
+
+        private final long over10s;
+
+        @ConstructorProperties({ "count", "failures", "totalMillis", "maxMillis", "upTo10ms", "upTo100ms", "upTo1s",
+                "upTo10s", "over10s" })
+        public OperationTimes(final long count, final long failures, final long totalMillis, final long maxMillis,
+                final long upTo10ms, final long upTo100ms, final long upTo1s, final long upTo10s, final long over10s) {
+            this.count = count;
+            this.failures = failures;
+            this.totalMillis = totalMillis;
+            this.maxMillis = maxMillis;
+            this.upTo10ms = upTo10ms;
+            this.upTo100ms = upTo100ms;
+            this.upTo1s = upTo1s;
+            this.upTo10s = upTo10s;
+            this.over10s = over10s;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+
+        public long getUpTo10ms() {
+            return upTo10ms;
+        }
+
+        public long getUpTo100ms() {
+            return upTo100ms;
+        }
+
+        public long getUpTo1s() {
+            return upTo1s;
+        }
+
+        public long getUpTo10s() {
+            return upTo10s;
+        }
+
+        public long getOver10s() {
+            return over10s;
+        }
+
+    }
+
+    class LockTimes {
+
+        private final long acquisitions;
+
+        private final long waitMillis;
+
+        private final long maxWaitMillis;
+
+        private final long holdMillis;
+
+        private final long maxHoldMillis;
+
+        @ConstructorProperties({ "acquisitions", "waitMillis", "maxWaitMillis", "holdMillis", "maxHoldMillis" })
+        public LockTimes(final long acquisitions, final long waitMillis, final long maxWaitMillis,
+                final long holdMillis, final long maxHoldMillis) {
+            this.acquisitions = acquisitions;
+            this.waitMillis = waitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+            this.holdMillis = holdMillis;
+            this.maxHoldMillis = maxHoldMillis;
+        }
+
+        public long getAcquisitions() {
+            return acquisitions;
+        }
+
+        public long getWaitMillis() {
+            return waitMillis;
+        }
+
+        public long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+
+        public long getHoldMillis() {
+            return holdMillis;
+        }
+
+        public long getMaxHoldMillis() {
+            return maxHoldMillis;
+        }
+
+    }
+
+}
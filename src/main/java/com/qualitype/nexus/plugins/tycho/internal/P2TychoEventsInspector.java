@@ -1,10 +1,10 @@
 /**
  * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
  * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
- * 
+ *
  * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
  * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
- * 
+ *
  * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
  * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
  * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
@@ -25,31 +25,40 @@ import org.sonatype.nexus.proxy.events.RepositoryItemEventStore;
 import org.sonatype.nexus.proxy.item.StorageItem;
 import org.sonatype.plexus.appevents.Event;
 
-import com.qualitype.nexus.plugins.tycho.P2TychoRepositoryAggregator;
-
+/**
+ * Dispatches stored, cached and deleted Tycho p2 fragments (p2artifacts.xml and p2metadata.xml) of aggregated
+ * repositories to the aggregation queue. Nexus asks it about every repository item event, so events of repositories
+ * that are not aggregated are rejected first, with a single lookup.
+ */
 @Named
 @Singleton
-public class P2TychoArtifactsEventsInspector implements EventInspector {
+public class P2TychoEventsInspector implements EventInspector {
 
-    private static final String P2ARTIFACTS_XML = "p2artifacts.xml";
-    private final P2TychoRepositoryAggregator p2RepositoryAggregator;
+    private final P2TychoRoutingTable routingTable;
+
+    private final P2TychoAggregationQueue aggregationQueue;
 
     @Inject
-    public P2TychoArtifactsEventsInspector(final P2TychoRepositoryAggregator p2RepositoryAggregator) {
-        this.p2RepositoryAggregator = p2RepositoryAggregator;
+    public P2TychoEventsInspector(final P2TychoRoutingTable routingTable,
+            final P2TychoAggregationQueue aggregationQueue) {
+        this.routingTable = routingTable;
+        this.aggregationQueue = aggregationQueue;
     }
 
     @Override
     public boolean accepts(final Event<?> evt) {
-        if (evt == null
-                || !(evt instanceof RepositoryItemEvent)
-                || !(evt instanceof RepositoryItemEventStore || evt instanceof RepositoryItemEventCache || evt instanceof RepositoryItemEventDelete)) {
+        if (!(evt instanceof RepositoryItemEvent)) {
             return false;
         }
-
         final RepositoryItemEvent event = (RepositoryItemEvent) evt;
-
-        return isP2ArtifactsXML(event.getItem());
+        if (event.getRepository() == null || !routingTable.isRouted(event.getRepository().getId())) {
+            return false;
+        }
+        if (!(event instanceof RepositoryItemEventStore || event instanceof RepositoryItemEventCache || event instanceof RepositoryItemEventDelete)) {
+            return false;
+        }
+        final StorageItem item = event.getItem();
+        return item != null && P2TychoRoutingTable.fragmentOf(item.getPath()) != null && !isHidden(item.getPath());
     }
 
     @Override
@@ -60,34 +69,11 @@ public class P2TychoArtifactsEventsInspector implements EventInspector {
 
         final RepositoryItemEvent event = (RepositoryItemEvent) evt;
 
-        if (event instanceof RepositoryItemEventStore || event instanceof RepositoryItemEventCache) {
-            onItemAdded(event);
-        } else if (event instanceof RepositoryItemEventDelete) {
-            onItemRemoved(event);
-        }
-    }
-
-    private void onItemAdded(final RepositoryItemEvent event) {
-        p2RepositoryAggregator.updateP2Artifacts(event.getItem());
-    }
-
-    private void onItemRemoved(final RepositoryItemEvent event) {
-        p2RepositoryAggregator.removeP2Artifacts(event.getItem());
-    }
-
-    private static boolean isP2ArtifactsXML(final StorageItem item) {
-        if (item == null) {
-            return false;
-        }
-        return !isHidden(item.getPath()) && isP2ArtifactsXML(item.getPath());
-    }
-
-    static boolean isP2ArtifactsXML(final String path) {
-        if (path == null) {
-            return false;
+        if (event instanceof RepositoryItemEventDelete) {
+            aggregationQueue.deleted(event.getItem());
+        } else {
+            aggregationQueue.stored(event.getItem());
         }
-        // Tycho creates a lower case _a_rtifacts
-        return path.endsWith(P2ARTIFACTS_XML);
     }
 
 }
@@ -0,0 +1,115 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import com.qualitype.nexus.plugins.tycho.P2TychoRepositoryAggregatorConfiguration;
+
+/**
+ * Routes repository item events to the aggregation: the configurations of the aggregated repositories and the
+ * matching of Tycho p2 fragments. The configurations are an immutable map that is replaced as a whole when they
+ * change (copy-on-write), so the hot path of the event bus can look up a repository without any locking.
+ */
+@Named
+@Singleton
+public class P2TychoRoutingTable {
+
+    enum Fragment {
+
+        /**
+         * p2artifacts.xml, Tycho creates a lower case _a_rtifacts
+         */
+        ARTIFACTS,
+
+        /**
+         * p2metadata.xml, Tycho renames 'content.xml' to 'p2metadata.xml' by install
+         */
+        METADATA
+
+    }
+
+    private static final String P2ARTIFACTS_XML = "p2artifacts.xml";
+
+    private static final String P2METADATA_XML = "p2metadata.xml";
+
+    // common suffix of all fragments, checked first as it rejects most paths
+    private static final String XML_SUFFIX = ".xml";
+
+    private volatile Map<String, P2TychoRepositoryAggregatorConfiguration> configurations = Collections.emptyMap();
+
+    /**
+     * @return the configuration of given repository, null if it is not aggregated
+     */
+    P2TychoRepositoryAggregatorConfiguration configurationOf(final String repositoryId) {
+        return configurations.get(repositoryId);
+    }
+
+    /**
+     * @return ids of all aggregated repositories
+     */
+    Collection<String> repositoryIds() {
+        return configurations.keySet();
+    }
+
+    boolean isRouted(final String repositoryId) {
+        return configurations.containsKey(repositoryId);
+    }
+
+    synchronized void add(final P2TychoRepositoryAggregatorConfiguration configuration) {
+        final Map<String, P2TychoRepositoryAggregatorConfiguration> copy = new HashMap<String, P2TychoRepositoryAggregatorConfiguration>(
+                configurations);
+        copy.put(configuration.repositoryId(), configuration);
+        configurations = Collections.unmodifiableMap(copy);
+    }
+
+    synchronized void remove(final String repositoryId) {
+        if (!configurations.containsKey(repositoryId)) {
+            return;
+        }
+        final Map<String, P2TychoRepositoryAggregatorConfiguration> copy = new HashMap<String, P2TychoRepositoryAggregatorConfiguration>(
+                configurations);
+        copy.remove(repositoryId);
+        configurations = Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * @return the kind of p2 fragment at given path, null if it is none
+     */
+    static Fragment fragmentOf(final String path) {
+        if (path == null || !path.endsWith(XML_SUFFIX)) {
+            return null;
+        }
+        if (path.endsWith(P2ARTIFACTS_XML)) {
+            return Fragment.ARTIFACTS;
+        }
+        if (path.endsWith(P2METADATA_XML)) {
+            return Fragment.METADATA;
+        }
+        return null;
+    }
+
+    static boolean isP2ArtifactsXML(final String path) {
+        return fragmentOf(path) == Fragment.ARTIFACTS;
+    }
+
+    static boolean isP2ContentXML(final String path) {
+        return fragmentOf(path) == Fragment.METADATA;
+    }
+
+}
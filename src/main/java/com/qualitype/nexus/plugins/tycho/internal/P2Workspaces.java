@@ -0,0 +1,263 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.slf4j.Logger;
+import org.sonatype.nexus.proxy.events.EventInspector;
+import org.sonatype.nexus.proxy.events.NexusStartedEvent;
+import org.sonatype.nexus.proxy.events.NexusStoppedEvent;
+import org.sonatype.plexus.appevents.Event;
+
+/**
+ * Pool of scratch directories files are written to before they get stored through Nexus. Workspaces are reused: a
+ * released one has its files truncated, not deleted, and is handed out again, so bursts of publications do not keep
+ * creating and deleting directories. Each workspace holds a file lock while the process lives; workspaces left
+ * unlocked by a crashed process are swept when Nexus starts. Workspaces of this process are never probed for their
+ * lock, as closing a second channel on a lock file may release the lock this process holds on it.
+ */
+@Named
+@Singleton
+public class P2Workspaces implements EventInspector {
+
+    /**
+     * Directory workspaces are created in, defaults to java.io.tmpdir. Best a fast local (or memory backed) volume.
+     */
+    static final String WORKSPACE_DIR_PROPERTY = "p2.tycho.aggregator.workspaceDir";
+
+    private static final String PREFIX = "nexus-p2-tycho-workspace-";
+
+    private static final String LOCK_FILE = ".lock";
+
+    // workspaces created by this process (by any pool), still to be deleted
+    private static final Set<File> CREATED = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    @Inject
+    private Logger logger;
+
+    private final File baseDir;
+
+    private final Queue<Workspace> idle;
+
+    private volatile boolean stopped;
+
+    public P2Workspaces() {
+        baseDir = new File(System.getProperty(WORKSPACE_DIR_PROPERTY, System.getProperty("java.io.tmpdir")));
+        idle = new ConcurrentLinkedQueue<Workspace>();
+    }
+
+    /**
+     * @return a workspace, to be handed back with {@link Workspace#release()}. Files written by its earlier users may
+     *         still be there, but empty; use {@link Workspace#newDirectory(String)} where that matters.
+     */
+    Workspace acquire() throws IOException {
+        final Workspace workspace = idle.poll();
+        return workspace != null ? workspace : create();
+    }
+
+    private Workspace create() throws IOException {
+        if (!baseDir.isDirectory() && !baseDir.mkdirs()) {
+            throw new IOException("Could not create workspace directory " + baseDir);
+        }
+        final File directory = File.createTempFile(PREFIX, "", baseDir);
+        CREATED.add(directory);
+        if (!directory.delete() || !directory.mkdir()) {
+            CREATED.remove(directory);
+            throw new IOException("Could not create workspace " + directory);
+        }
+        final FileChannel lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+        try {
+            return new Workspace(directory, lockFile, lockFile.lock());
+        } catch (final IOException e) {
+            IOUtil.close(lockFile);
+            FileUtils.deleteDirectory(directory);
+            CREATED.remove(directory);
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes the workspaces no (living) process holds the lock of. Workspaces of this process are skipped.
+     */
+    void sweep() {
+        final File[] candidates = baseDir.listFiles();
+        if (candidates == null) {
+            return;
+        }
+        int swept = 0;
+        for (final File candidate : candidates) {
+            if (candidate.isDirectory() && candidate.getName().startsWith(PREFIX) && !CREATED.contains(candidate)
+                    && isOrphaned(candidate)) {
+                try {
+                    FileUtils.deleteDirectory(candidate);
+                    swept++;
+                } catch (final IOException e) {
+                    logger.warn("Could not delete orphaned P2 aggregation workspace [{}] due to [{}]", candidate,
+                            e.getMessage());
+                }
+            }
+        }
+        if (swept > 0) {
+            logger.info("Deleted [{}] orphaned P2 aggregation workspaces in [{}]", swept, baseDir);
+        }
+    }
+
+    /**
+     * Must not be asked for a workspace of this process, see {@link #CREATED}.
+     */
+    private static boolean isOrphaned(final File workspace) {
+        final File lock = new File(workspace, LOCK_FILE);
+        if (!lock.exists()) {
+            return true;
+        }
+        FileChannel lockFile = null;
+        try {
+            lockFile = new RandomAccessFile(lock, "rw").getChannel();
+            final FileLock fileLock = lockFile.tryLock();
+            if (fileLock == null) {
+                return false;
+            }
+            fileLock.release();
+            return true;
+        } catch (final IOException e) {
+            return false;
+        } finally {
+            IOUtil.close(lockFile);
+        }
+    }
+
+    @Override
+    public boolean accepts(final Event<?> evt) {
+        return evt instanceof NexusStartedEvent || evt instanceof NexusStoppedEvent;
+    }
+
+    @Override
+    public void inspect(final Event<?> evt) {
+        if (evt instanceof NexusStartedEvent) {
+            sweep();
+        } else if (evt instanceof NexusStoppedEvent) {
+            // workspaces still in use are deleted once released
+            stopped = true;
+            for (Workspace workspace = idle.poll(); workspace != null; workspace = idle.poll()) {
+                workspace.delete();
+            }
+        }
+    }
+
+    class Workspace {
+
+        private final File directory;
+
+        private final FileChannel lockFile;
+
+        private final FileLock lock;
+
+        private Workspace(final File directory, final FileChannel lockFile, final FileLock lock) {
+            this.directory = directory;
+            this.lockFile = lockFile;
+            this.lock = lock;
+        }
+
+        File directory() {
+            return directory;
+        }
+
+        File file(final String name) {
+            return new File(directory, name);
+        }
+
+        /**
+         * @return a new, empty directory in this workspace, deleted (with its content) once the workspace is released
+         */
+        File newDirectory(final String name) throws IOException {
+            final File created = new File(directory, name);
+            if (created.exists()) {
+                FileUtils.deleteDirectory(created);
+            }
+            if (!created.mkdir()) {
+                throw new IOException("Could not create " + created);
+            }
+            return created;
+        }
+
+        /**
+         * Empties the workspace and hands it back to the pool. Files are truncated rather than deleted, as the same few
+         * names get written again and again.
+         */
+        void release() {
+            final File[] files = directory.listFiles();
+            try {
+                if (files == null) {
+                    throw new IOException("Could not list workspace " + directory);
+                }
+                for (final File file : files) {
+                    if (file.isDirectory()) {
+                        FileUtils.deleteDirectory(file);
+                    } else if (!LOCK_FILE.equals(file.getName()) && file.length() > 0) {
+                        truncate(file);
+                    }
+                }
+            } catch (final IOException e) {
+                logger.debug("Could not clean P2 aggregation workspace [{}] due to [{}]", directory, e.getMessage());
+                delete();
+                return;
+            }
+            if (stopped) {
+                delete();
+            } else {
+                idle.offer(this);
+            }
+        }
+
+        private void delete() {
+            try {
+                lock.release();
+            } catch (final IOException e) {
+                // closing releases it as well
+            }
+            IOUtil.close(lockFile);
+            try {
+                FileUtils.deleteDirectory(directory);
+                CREATED.remove(directory);
+            } catch (final IOException e) {
+                logger.debug("Could not delete P2 aggregation workspace [{}] due to [{}]", directory, e.getMessage());
+            }
+        }
+
+    }
+
+    private static void truncate(final File file) throws IOException {
+        final FileChannel out = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            out.truncate(0);
+        } finally {
+            IOUtil.close(out);
+        }
+    }
+
+}
@@ -19,7 +19,9 @@ import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.sonatype.nexus.formfields.FormField;
+import org.sonatype.nexus.formfields.NumberTextFormField;
 import org.sonatype.nexus.formfields.RepoOrGroupComboFormField;
+import org.sonatype.nexus.formfields.StringTextFormField;
 import org.sonatype.nexus.plugins.capabilities.CapabilityDescriptor;
 import org.sonatype.nexus.plugins.capabilities.CapabilityType;
 import org.sonatype.nexus.plugins.capabilities.support.CapabilityDescriptorSupport;
@@ -49,7 +51,56 @@ public class P2TychoRepositoryAggregatorCapabilityDescriptor
                 + "<span style=\"font-weight: bold;\">EXPERIMENTAL</span>\n"
                 + "<br/>"
                 + "This is an experimental, unsupported feature.",
-            new RepoOrGroupComboFormField( P2TychoRepositoryAggregatorConfiguration.REPOSITORY, FormField.MANDATORY )
+            new RepoOrGroupComboFormField( P2TychoRepositoryAggregatorConfiguration.REPOSITORY, FormField.MANDATORY ),
+            new NumberTextFormField(
+                P2TychoRepositoryAggregatorConfiguration.COALESCING_WINDOW,
+                "Coalescing window (ms)",
+                "Quiet time after the last p2 metadata/artifacts event before the events collected so far are "
+                    + "aggregated in one go (default "
+                    + P2TychoRepositoryAggregatorConfiguration.DEFAULT_COALESCING_WINDOW + ")",
+                FormField.OPTIONAL
+            ),
+            new NumberTextFormField(
+                P2TychoRepositoryAggregatorConfiguration.COALESCING_MAX_DELAY,
+                "Maximum coalescing delay (ms)",
+                "Time after the first collected p2 metadata/artifacts event the events are aggregated at the latest, "
+                    + "even if events keep arriving (default "
+                    + P2TychoRepositoryAggregatorConfiguration.DEFAULT_COALESCING_MAX_DELAY + ")",
+                FormField.OPTIONAL
+            ),
+            new StringTextFormField(
+                P2TychoRepositoryAggregatorConfiguration.AGGREGATION_MODE,
+                "Aggregation mode",
+                "\"" + P2TychoRepositoryAggregatorConfiguration.MONOLITHIC
+                    + "\" (one content.xml / artifacts.xml, default) or \""
+                    + P2TychoRepositoryAggregatorConfiguration.COMPOSITE
+                    + "\" (one child repository per deployed build, aggregated by a composite repository) or \""
+                    + P2TychoRepositoryAggregatorConfiguration.SHARDED
+                    + "\" (a fixed number of shard repositories by groupId, aggregated by a composite repository)",
+                FormField.OPTIONAL,
+                "^(" + P2TychoRepositoryAggregatorConfiguration.MONOLITHIC + "|"
+                    + P2TychoRepositoryAggregatorConfiguration.COMPOSITE + "|"
+                    + P2TychoRepositoryAggregatorConfiguration.SHARDED + ")?$"
+            ),
+            new NumberTextFormField(
+                P2TychoRepositoryAggregatorConfiguration.SHARD_COUNT,
+                "Shard count",
+                "Number of shard repositories in \"" + P2TychoRepositoryAggregatorConfiguration.SHARDED
+                    + "\" mode (default " + P2TychoRepositoryAggregatorConfiguration.DEFAULT_SHARD_COUNT + ")",
+                FormField.OPTIONAL
+            ),
+            new StringTextFormField(
+                P2TychoRepositoryAggregatorConfiguration.MERGE_ENGINE,
+                "Merge engine",
+                "\"" + P2TychoRepositoryAggregatorConfiguration.INDEX
+                    + "\" (aggregated p2 repositories are kept in memory, default) or \""
+                    + P2TychoRepositoryAggregatorConfiguration.STREAMING
+                    + "\" (only unit / artifact keys are kept in memory, the published files are streamed when they "
+                    + "get published again, full rebuilds still merge in memory)",
+                FormField.OPTIONAL,
+                "^(" + P2TychoRepositoryAggregatorConfiguration.INDEX + "|"
+                    + P2TychoRepositoryAggregatorConfiguration.STREAMING + ")?$"
+            )
         );
     }
 
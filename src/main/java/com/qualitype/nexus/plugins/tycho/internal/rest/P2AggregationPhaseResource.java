@@ -0,0 +1,42 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal.rest;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * Time an aggregation operation spent in one phase.
+ */
+@XStreamAlias("p2AggregationPhase")
+public class P2AggregationPhaseResource {
+
+    private String phase;
+
+    private long millis;
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public void setPhase(final String phase) {
+        this.phase = phase;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    public void setMillis(final long millis) {
+        this.millis = millis;
+    }
+
+}
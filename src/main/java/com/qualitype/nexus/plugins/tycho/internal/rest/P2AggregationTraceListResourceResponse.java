@@ -0,0 +1,39 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * Traces of P2 aggregation operations, as listed by {@link P2TychoAggregationTracePlexusResource}.
+ */
+@XStreamAlias("p2AggregationTraces")
+public class P2AggregationTraceListResourceResponse {
+
+    private List<P2AggregationTraceResource> data = new ArrayList<P2AggregationTraceResource>();
+
+    public List<P2AggregationTraceResource> getData() {
+        return data;
+    }
+
+    public void setData(final List<P2AggregationTraceResource> data) {
+        this.data = data;
+    }
+
+    public void addData(final P2AggregationTraceResource trace) {
+        data.add(trace);
+    }
+
+}
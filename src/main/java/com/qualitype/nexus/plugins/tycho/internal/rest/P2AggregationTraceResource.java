@@ -0,0 +1,120 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * Trace of one aggregation operation (a batch of fragment events or a rebuild) of a repository.
+ */
+@XStreamAlias("p2AggregationTrace")
+public class P2AggregationTraceResource {
+
+    private String repositoryId;
+
+    private String operation;
+
+    private String detail;
+
+    private long startedAt;
+
+    private long elapsedMillis;
+
+    private boolean running;
+
+    // phase a running operation is in, null if it is between phases or finished
+    private String phase;
+
+    private List<P2AggregationPhaseResource> phaseMillis = new ArrayList<P2AggregationPhaseResource>();
+
+    private String failure;
+
+    public String getRepositoryId() {
+        return repositoryId;
+    }
+
+    public void setRepositoryId(final String repositoryId) {
+        this.repositoryId = repositoryId;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public void setOperation(final String operation) {
+        this.operation = operation;
+    }
+
+    public String getDetail() {
+        return detail;
+    }
+
+    public void setDetail(final String detail) {
+        this.detail = detail;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public void setStartedAt(final long startedAt) {
+        this.startedAt = startedAt;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public void setElapsedMillis(final long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void setRunning(final boolean running) {
+        this.running = running;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public void setPhase(final String phase) {
+        this.phase = phase;
+    }
+
+    public List<P2AggregationPhaseResource> getPhaseMillis() {
+        return phaseMillis;
+    }
+
+    public void setPhaseMillis(final List<P2AggregationPhaseResource> phaseMillis) {
+        this.phaseMillis = phaseMillis;
+    }
+
+    public void addPhaseMillis(final P2AggregationPhaseResource phaseMillis) {
+        this.phaseMillis.add(phaseMillis);
+    }
+
+    public String getFailure() {
+        return failure;
+    }
+
+    public void setFailure(final String failure) {
+        this.failure = failure;
+    }
+
+}
@@ -0,0 +1,118 @@
+/**
+ * Sonatype Nexus (TM) Open Source Version Copyright (c) 2007-2012 Sonatype, Inc. All rights reserved. Includes the
+ * third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version
+ * 1.0, which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are
+ * trademarks of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark
+ * of the Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package com.qualitype.nexus.plugins.tycho.internal.rest;
+
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.restlet.Context;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.Variant;
+import org.sonatype.nexus.rest.AbstractNexusPlexusResource;
+import org.sonatype.plexus.rest.resource.PathProtectionDescriptor;
+import org.sonatype.plexus.rest.xstream.AliasingListConverter;
+
+import com.qualitype.nexus.plugins.tycho.internal.P2AggregationTrace;
+import com.qualitype.nexus.plugins.tycho.internal.P2AggregationTrace.Phase;
+import com.qualitype.nexus.plugins.tycho.internal.P2AggregationTracer;
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Lists the traces of running and recently finished P2 aggregation operations, optionally only those of one
+ * repository (?repositoryId=...).
+ */
+@Named("P2TychoAggregationTracePlexusResource")
+@Singleton
+public class P2TychoAggregationTracePlexusResource extends AbstractNexusPlexusResource {
+
+    public static final String RESOURCE_URI = "/p2-tycho/traces";
+
+    public static final String REPOSITORY_ID_PARAMETER = "repositoryId";
+
+    private final P2AggregationTracer tracer;
+
+    @Inject
+    public P2TychoAggregationTracePlexusResource(final P2AggregationTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    @Override
+    public Object getPayloadInstance() {
+        // read only
+        return null;
+    }
+
+    @Override
+    public String getResourceUri() {
+        return RESOURCE_URI;
+    }
+
+    @Override
+    public PathProtectionDescriptor getResourceProtection() {
+        return new PathProtectionDescriptor(getResourceUri(), "authcBasic,perms[nexus:logs]");
+    }
+
+    @Override
+    public void configureXStream(final XStream xstream) {
+        super.configureXStream(xstream);
+        xstream.processAnnotations(P2AggregationTraceListResourceResponse.class);
+        xstream.processAnnotations(P2AggregationTraceResource.class);
+        xstream.processAnnotations(P2AggregationPhaseResource.class);
+        xstream.registerLocalConverter(P2AggregationTraceListResourceResponse.class, "data",
+                new AliasingListConverter(P2AggregationTraceResource.class, "trace"));
+        xstream.registerLocalConverter(P2AggregationTraceResource.class, "phaseMillis",
+                new AliasingListConverter(P2AggregationPhaseResource.class, "phase"));
+    }
+
+    @Override
+    public Object get(final Context context, final Request request, final Response response, final Variant variant)
+            throws ResourceException {
+        final String repositoryId = request.getResourceRef().getQueryAsForm().getFirstValue(REPOSITORY_ID_PARAMETER);
+
+        final P2AggregationTraceListResourceResponse result = new P2AggregationTraceListResourceResponse();
+        for (final P2AggregationTrace trace : tracer.traces()) {
+            if (repositoryId == null || repositoryId.equals(trace.getRepositoryId())) {
+                result.addData(toResource(trace));
+            }
+        }
+        return result;
+    }
+
+    private static P2AggregationTraceResource toResource(final P2AggregationTrace trace) {
+        // read once, a running trace keeps changing
+        final Map<Phase, Long> phaseMillis = trace.getPhaseMillis();
+        final Phase phase = trace.getPhase();
+
+        final P2AggregationTraceResource resource = new P2AggregationTraceResource();
+        resource.setRepositoryId(trace.getRepositoryId());
+        resource.setOperation(trace.getOperation());
+        resource.setDetail(trace.getDetail());
+        resource.setStartedAt(trace.getStartedAt());
+        resource.setElapsedMillis(trace.getElapsedMillis());
+        resource.setRunning(trace.isRunning());
+        resource.setPhase(phase == null ? null : phase.name());
+        for (final Map.Entry<Phase, Long> spent : phaseMillis.entrySet()) {
+            final P2AggregationPhaseResource phaseResource = new P2AggregationPhaseResource();
+            phaseResource.setPhase(spent.getKey().name());
+            phaseResource.setMillis(spent.getValue());
+            resource.addPhaseMillis(phaseResource);
+        }
+        resource.setFailure(trace.getFailure());
+        return resource;
+    }
+
+}
@@ -15,7 +15,9 @@ import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.sonatype.nexus.scheduling.AbstractNexusRepositoriesTask;
+import org.sonatype.scheduling.ProgressListener;
 import org.sonatype.scheduling.SchedulerTask;
+import org.sonatype.scheduling.TaskUtil;
 
 import com.qualitype.nexus.plugins.tycho.P2TychoRepositoryAggregator;
 
@@ -43,8 +45,8 @@ public class P2TychoRepositoryAggregatorTask extends AbstractNexusRepositoriesTa
     @Override
     protected String getMessage() {
         if (getRepositoryId() != null) {
-            return String.format("Rebuild p2 repository on repository [%s] from root path and bellow",
-                    getRepositoryId());
+            return String.format("Rebuild p2 repository on repository [%s] from [%s] path and bellow",
+                    getRepositoryId(), getResourceStorePathParameter());
         } else {
             return "Rebuild p2 repository for all repositories (with a P2 Repository Generator Capability enabled)";
         }
@@ -53,13 +55,27 @@ public class P2TychoRepositoryAggregatorTask extends AbstractNexusRepositoriesTa
     @Override
     protected Object doRun() throws Exception {
         final String repositoryId = getRepositoryId();
+        final boolean forceFull = Boolean.parseBoolean(getParameter(
+                P2TychoRepositoryAggregatorTaskDescriptor.FORCE_FULL_FIELD_ID));
+        final ProgressListener progress = TaskUtil.getCurrentProgressListener();
         if (repositoryId != null) {
-            p2RepositoryAggregator.scanAndRebuild(repositoryId);
+            p2RepositoryAggregator.scanAndRebuild(repositoryId, getResourceStorePathParameter(), forceFull, progress);
         } else {
-            p2RepositoryAggregator.scanAndRebuild();
+            p2RepositoryAggregator.scanAndRebuild(forceFull, progress);
         }
+        // marks the task canceled if the rebuild was
+        TaskUtil.checkInterruption();
 
         return null;
     }
 
+    private String getResourceStorePathParameter() {
+        final String resourceStorePath = getParameter(
+                P2TychoRepositoryAggregatorTaskDescriptor.RESOURCE_STORE_PATH_FIELD_ID);
+        if (resourceStorePath == null || resourceStorePath.trim().length() == 0) {
+            return "/";
+        }
+        return resourceStorePath.trim();
+    }
+
 }
@@ -16,6 +16,7 @@ import java.util.List;
 
 import javax.inject.Named;
 
+import org.sonatype.nexus.formfields.CheckboxFormField;
 import org.sonatype.nexus.formfields.FormField;
 import org.sonatype.nexus.formfields.RepoOrGroupComboFormField;
 import org.sonatype.nexus.formfields.StringTextFormField;
@@ -32,12 +33,19 @@ public class P2TychoRepositoryAggregatorTaskDescriptor extends AbstractScheduled
 
     public static final String RESOURCE_STORE_PATH_FIELD_ID = "resourceStorePath";
 
+    public static final String FORCE_FULL_FIELD_ID = "forceFull";
+
     private final RepoOrGroupComboFormField repoField = new RepoOrGroupComboFormField(REPO_OR_GROUP_FIELD_ID,
             FormField.MANDATORY);
 
     private final StringTextFormField resourceStorePathField = new StringTextFormField(RESOURCE_STORE_PATH_FIELD_ID,
             "Repository path",
-            "Enter a repository path to run the task in recursively (ie. \"/\" for root or \"/org/apache\").",
+            "Enter a repository path to run the task in recursively (ie. \"/\" for root or \"/org/apache\"). Only the "
+                    + "Tycho fragments below it are applied again.",
+            FormField.OPTIONAL);
+
+    private final CheckboxFormField forceFullField = new CheckboxFormField(FORCE_FULL_FIELD_ID, "Force full rebuild",
+            "Reprocess all Tycho fragments, instead of only those added, changed or removed since the last rebuild.",
             FormField.OPTIONAL);
 
     @Override
@@ -53,7 +61,7 @@ public class P2TychoRepositoryAggregatorTaskDescriptor extends AbstractScheduled
     @SuppressWarnings("rawtypes")
     @Override
     public List<FormField> formFields() {
-        return Arrays.<FormField> asList(repoField, resourceStorePathField);
+        return Arrays.<FormField> asList(repoField, resourceStorePathField, forceFullField);
     }
 
 }